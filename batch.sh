@@ -0,0 +1,13 @@
+#!/bin/bash
+
+if [ -z "$1" ]; then
+    echo "usage ./batch.sh <path-to-input-directory | path-to-manifest> [worker-threads-per-stage]"
+    exit 0
+fi
+
+INPUT=$1
+WORKERS=$2
+
+# shellcheck disable=SC2164
+cd src
+java -ea -cp .:./gson-2.10.1.jar Batch "../$INPUT" $WORKERS
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+if [ -z "$2" ]; then
+    echo "usage ./batchsim.sh <path-to-loop.json | path-to-looppip.json> <lanes> [memory-words] [seed]"
+    exit 0
+fi
+
+# shellcheck disable=SC2164
+cd src
+java -cp .:./gson-2.10.1.jar BatchSimulator "../$1" $2 $3 $4
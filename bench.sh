@@ -0,0 +1,6 @@
+#!/bin/bash
+
+# Assertions stay disabled here so they do not distort the measurements.
+# shellcheck disable=SC2164
+cd src
+java -Xms1g -Xmx1g -cp .:./gson-2.10.1.jar Benchmark "$@"
@@ -1,3 +1,3 @@
 #!/bin/bash
 
-javac -cp .:./src/gson-2.10.1.jar src/*.java src/Instructions/*.java src/Microarchitecture/*.java
\ No newline at end of file
+javac -cp .:./src/gson-2.10.1.jar src/*.java src/Instructions/*.java src/Microarchitecture/*.java src/Tracing/*.java
\ No newline at end of file
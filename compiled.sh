@@ -0,0 +1,11 @@
+#!/bin/bash
+
+if [ -z "$1" ]; then
+    echo "usage ./compiled.sh <path-to-loop.json | path-to-looppip.json> [memory-words] [seconds]"
+    exit 0
+fi
+
+# Large schedules compile to methods the JIT skips by default.
+# shellcheck disable=SC2164
+cd src
+java -XX:-DontCompileHugeMethods -cp .:./gson-2.10.1.jar CompiledSchedule "../$1" $2 $3
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+if [ -z "$1" ] || [ -z "$2" ]; then
+    echo "usage ./convert.sh <path-to-input.json | input.vir> <path-to-output.vir | output.json>"
+    exit 0
+fi
+
+# shellcheck disable=SC2164
+cd src
+java -cp .:./gson-2.10.1.jar BinaryProgram "../$1" "../$2"
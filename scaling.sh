@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Writes scaling.csv next to this script and, if gnuplot is installed, plots it into scaling.png.
+# shellcheck disable=SC2164
+cd src
+java -Xmx8g -cp .:./gson-2.10.1.jar Scaling --csv ../scaling.csv "$@" || exit 1
+cd ..
+
+if command -v gnuplot > /dev/null; then
+    gnuplot <<'PLOT'
+set datafile separator ","
+set terminal png size 1400,600
+set output "scaling.png"
+set multiplot layout 1,2
+set logscale xy
+set key top left
+set xlabel "instructions"
+phases = "parse analyze place.sequential allocateRegisters.sequential dump.sequential place.pipelined allocateRegisters.pipelined prepareLoop dump.pipelined"
+set ylabel "ms"
+plot for [p in phases] "scaling.csv" using (strcol(2) eq p && strcol(3) eq "ok" ? $1 : NaN):4 with linespoints title p
+set ylabel "allocated MB"
+plot for [p in phases] "scaling.csv" using (strcol(2) eq p && strcol(3) eq "ok" ? $1 : NaN):($5 / 1e6) with linespoints title p
+unset multiplot
+PLOT
+fi
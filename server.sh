@@ -0,0 +1,14 @@
+#!/bin/bash
+
+if [ -z "$1" ]; then
+    echo "usage ./server.sh <port | path-to-unix-socket> [max-concurrent-schedules] [max-connections]"
+    exit 0
+fi
+
+ADDRESS=$1
+CONCURRENCY=$2
+CONNECTIONS=$3
+
+# shellcheck disable=SC2164
+cd src
+java -ea -cp .:./gson-2.10.1.jar Server "$ADDRESS" $CONCURRENCY $CONNECTIONS
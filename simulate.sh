@@ -0,0 +1,10 @@
+#!/bin/bash
+
+if [ -z "$1" ]; then
+    echo "usage ./simulate.sh <path-to-loop.json | path-to-looppip.json> [memory-words] [max-cycles]"
+    exit 0
+fi
+
+# shellcheck disable=SC2164
+cd src
+java -cp .:./gson-2.10.1.jar Simulator "../$1" $2 $3
@@ -0,0 +1,55 @@
+import Instructions.Instruction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Output of the scheduler's front-end: the parsed program together with its loop bounds and dependency graph.
+ *
+ * Scheduling rewrites the instructions it places (scheduled address, mapped registers and predicates), so an
+ * analyzed program is never scheduled directly. Every back-end works on its own fork, which lets the sequential
+ * and pipelined schedules be built concurrently from a single parse and analysis. The dependency graph only refers
+ * to instructions by address, so all forks share it.
+ */
+public class AnalyzedProgram {
+    private final List<Instruction> program;
+    private final Instruction loopStart, loopEnd;
+    private final DependencyGraph dependencyGraph;
+
+    AnalyzedProgram(ArrayList<Instruction> program, Instruction loopStart, Instruction loopEnd,
+                    DependencyGraph dependencyGraph) {
+        this.program = Collections.unmodifiableList(program);
+        this.loopStart = loopStart;
+        this.loopEnd = loopEnd;
+        this.dependencyGraph = dependencyGraph;
+    }
+
+    /**
+     * Returns a private working copy of the program for one back-end to schedule.
+     */
+    Fork fork() {
+        ArrayList<Instruction> copy = new ArrayList<>(program.size());
+        for (Instruction i : program)
+            copy.add(i.copy());
+
+        return new Fork(copy,
+                loopStart == null ? null : copy.get(loopStart.getAddress()),
+                loopEnd == null ? null : copy.get(loopEnd.getAddress()),
+                dependencyGraph);
+    }
+
+    static class Fork {
+        final ArrayList<Instruction> program;
+        final Instruction loopStart, loopEnd;
+        final DependencyGraph dependencyGraph;
+
+        private Fork(ArrayList<Instruction> program, Instruction loopStart, Instruction loopEnd,
+                     DependencyGraph dependencyGraph) {
+            this.program = program;
+            this.loopStart = loopStart;
+            this.loopEnd = loopEnd;
+            this.dependencyGraph = dependencyGraph;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import Instructions.Instruction;
+import Microarchitecture.RegisterAllocator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Schedules many kernels in one JVM. The input is either a directory, in which case every input.json below it
+ * is scheduled into a loop.json and looppip.json next to it, or a manifest file with one
+ * "<input.json> <loop.json> <looppip.json>" triple per line.
+ *
+ * Every kernel passes through the parse, analyze, schedule and dump stages, which run concurrently and hand
+ * work to each other through bounded queues. A kernel that fails in any stage is reported and skips the
+ * remaining stages without affecting the rest of the batch.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./batch.sh given_tests
+ */
+public class Batch {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final String INPUT_NAME = "input.json";
+    private static final String LOOP_NAME = "loop.json";
+    private static final String LOOP_PIP_NAME = "looppip.json";
+    private static final Job END = new Job(null, null, null);
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.print("usage: java Batch <input-directory | manifest> [worker threads per stage]\n");
+            System.exit(0);
+        }
+
+        int workers = args.length == 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        List<Job> jobs;
+        ScheduleCache cache;
+        Path sidecar = ScheduleMetrics.sidecarFromEnvironment();
+        try {
+            jobs = collectJobs(Paths.get(args[0]));
+            cache = ScheduleCache.fromEnvironment();
+            if (sidecar != null)
+                jobs.forEach(job -> job.metrics = new ScheduleMetrics(job.input));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        int failed;
+        try {
+            failed = run(jobs, workers, cache);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+            return;
+        }
+
+        System.out.printf("%d kernels scheduled, %d failed\n", jobs.size() - failed, failed);
+        if (cache != null)
+            System.out.println(cache.report());
+        if (sidecar != null) {
+            try {
+                ScheduleMetrics.write(jobs.stream().map(job -> job.metrics).collect(Collectors.toList()), sidecar);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs every job through the stage pipeline and reports failures as they reach the end of it. Kernels found
+     * in the cache, if there is one, pass the analyze and schedule stages untouched.
+     * @return the number of jobs that failed
+     */
+    static int run(List<Job> jobs, int workers, ScheduleCache cache) throws InterruptedException {
+        BlockingQueue<Job> sources = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Job> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Job> analyzed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Job> scheduled = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Job> done = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        startStage("parse", workers, sources, parsed, job -> {
+            job.program = job.metrics.phase(ScheduleMetrics.PROGRAM, "parse", () -> IO.parseInstructions(job.input));
+            if (cache != null) {
+                job.cacheKey = ScheduleCache.key(job.program);
+                job.cached = cache.get(job.cacheKey);
+            }
+        });
+        startStage("analyze", workers, parsed, analyzed, job -> {
+            if (job.cached != null)
+                return;
+            ArrayList<Instruction> program = job.program;
+            job.analysis = job.metrics.phase(ScheduleMetrics.PROGRAM, "analyze", () -> Scheduler.analyze(program));
+            job.program = null;
+        });
+        startStage("schedule", workers, analyzed, scheduled, job -> {
+            if (job.cached != null)
+                return;
+            job.simple = Scheduler.schedule(job.analysis, false, new RegisterAllocator(), job.metrics);
+            job.pipelined = Scheduler.schedule(job.analysis, true, new RegisterAllocator(), job.metrics);
+            job.analysis = null;
+        });
+        startStage("dump", workers, scheduled, done, job -> {
+            Schedule simple = job.simple, pipelined = job.pipelined;
+            if (cache == null) {
+                job.metrics.phase(ScheduleMetrics.LOOP, "dump", () -> {
+                    IO.dump(simple, job.loopOutput);
+                    return simple;
+                });
+                job.metrics.phase(ScheduleMetrics.LOOP_PIP, "dump", () -> {
+                    IO.dump(pipelined, job.pipOutput);
+                    return pipelined;
+                });
+                return;
+            }
+            boolean hit = job.cached != null;
+            if (!hit)
+                job.cached = new ScheduleCache.Schedules(
+                        job.metrics.phase(ScheduleMetrics.LOOP, "dump", () -> IO.dump(simple)),
+                        job.metrics.phase(ScheduleMetrics.LOOP_PIP, "dump", () -> IO.dump(pipelined)));
+            Files.write(Paths.get(job.loopOutput), job.cached.loop);
+            Files.write(Paths.get(job.pipOutput), job.cached.loopPip);
+            if (!hit)
+                cache.put(job.cacheKey, job.cached);
+        });
+
+        Thread feeder = new Thread(() -> {
+            try {
+                for (Job job : jobs)
+                    sources.put(job);
+                sources.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-feeder");
+        feeder.start();
+
+        int failed = 0;
+        for (Job job = done.take(); job != END; job = done.take()) {
+            job.release();
+            if (job.failure == null)
+                continue;
+            failed++;
+            System.err.printf("%s: failed during %s: %s\n", job.input, job.failedStage, job.failure);
+        }
+        return failed;
+    }
+
+    private static void startStage(String name, int workers, BlockingQueue<Job> in, BlockingQueue<Job> out,
+                                   Stage stage) {
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    for (Job job = in.take(); job != END; job = in.take()) {
+                        if (job.failure == null) {
+                            try {
+                                stage.apply(job);
+                            } catch (Throwable e) {
+                                // Errors too, such as a deep kernel overflowing the stack, fail only their job
+                                job.fail(name, e);
+                            }
+                        }
+                        out.put(job);
+                    }
+                    // Let the other workers of this stage see the end marker too
+                    in.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // However the last worker leaves, the next stage has to see the end
+                    if (running.decrementAndGet() == 0) {
+                        try {
+                            out.put(END);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, String.format("batch-%s-%d", name, i));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    static List<Job> collectJobs(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                return files.filter(p -> p.getFileName().toString().equals(INPUT_NAME))
+                        .sorted()
+                        .map(p -> new Job(p.toString(),
+                                p.resolveSibling(LOOP_NAME).toString(),
+                                p.resolveSibling(LOOP_PIP_NAME).toString()))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            }
+        }
+
+        List<Job> jobs = new ArrayList<>();
+        Path base = path.toAbsolutePath().getParent();
+        List<String> lines = Files.readAllLines(path);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] vec = line.split("\\s+");
+            if (vec.length != 3)
+                throw new IOException(String.format("%s:%d: expected '<input.json> <loop.json> <looppip.json>'",
+                        path, i + 1));
+            jobs.add(new Job(base.resolve(vec[0]).toString(),
+                    base.resolve(vec[1]).toString(),
+                    base.resolve(vec[2]).toString()));
+        }
+        return jobs;
+    }
+
+    private interface Stage {
+        void apply(Job job) throws Exception;
+    }
+
+    static class Job {
+        private final String input, loopOutput, pipOutput;
+        private ArrayList<Instruction> program;
+        private AnalyzedProgram analysis;
+        private Schedule simple, pipelined;
+        private String cacheKey;
+        private ScheduleCache.Schedules cached;
+        private ScheduleMetrics metrics = ScheduleMetrics.DISABLED;
+        private String failedStage;
+        private Throwable failure;
+
+        Job(String input, String loopOutput, String pipOutput) {
+            this.input = input;
+            this.loopOutput = loopOutput;
+            this.pipOutput = pipOutput;
+        }
+
+        private void fail(String stage, Throwable cause) {
+            failedStage = stage;
+            failure = cause;
+            release();
+        }
+
+        // Drop whatever the stages produced so finished and failed kernels do not pin memory
+        private void release() {
+            program = null;
+            analysis = null;
+            simple = pipelined = null;
+            cached = null;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import Microarchitecture.Microarchitecture;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Executes one schedule over many initial states at once, with the semantics of Simulator. Every state is a lane.
+ *
+ * Control flow in this machine never depends on data: the loop counters are only set from immediates, and
+ * predicates only from immediates and loop.pip. So lanes that run the same trip count take the same path through
+ * the bundles and can step through every bundle together. Their registers and memories are kept as structs of
+ * arrays, register r of all lanes side by side and so every word of memory, and every operation is a loop over
+ * the lanes that the JIT can vectorize. Lanes are grouped by trip count and the groups split into blocks of
+ * BLOCK_LANES, which run on the fork/join pool.
+ *
+ * Example execution with run scripts, running a schedule over 100000 random memories of 1024 words:
+ * ./build.sh && ./batchsim.sh given_tests/17/looppip.json 100000 1024
+ */
+public class BatchSimulator {
+    private static final int BLOCK_LANES = 512;
+    private static final int TILE_LANES = 16;
+    private static final long DEFAULT_MAX_CYCLES = 100_000_000;
+    private static final int DEFAULT_MEMORY_WORDS = 1 << 10;
+
+    private final DecodedSchedule schedule;
+
+    BatchSimulator(DecodedSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            System.out.print("usage: java BatchSimulator <loop.json | looppip.json> <lanes> [memory words] [seed]\n");
+            System.exit(0);
+        }
+        int lanes = Integer.parseInt(args[1]);
+        int words = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MEMORY_WORDS;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        try {
+            BatchSimulator simulator = new BatchSimulator(DecodedSchedule.read(Paths.get(args[0])));
+            // Every lane starts from memory filled with small random values, so loaded values stay usable as
+            // addresses; the memories it ends with are summed up into one checksum
+            AtomicLong checksum = new AtomicLong();
+            long start = System.nanoTime();
+            Simulator.Result result = simulator.run(lanes, words, null, (lane, registers, memory) -> {
+                SplittableRandom random = new SplittableRandom(seed + lane);
+                for (int w = 0; w < memory.length; w++)
+                    memory[w] = random.nextInt(words);
+            }, (lane, registers, memory) -> {
+                long sum = 0;
+                for (long word : memory)
+                    sum = 31 * sum + word;
+                checksum.addAndGet(sum);
+            }, DEFAULT_MAX_CYCLES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d lanes in %.2f s, %.0f lanes/s, checksum %016x\n", lanes, seconds, lanes / seconds,
+                    checksum.get());
+            System.out.print(result.report());
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Fills in the initial registers, by physical number, and memory of a lane; both start out zero. Lanes of
+     * different blocks are initialized concurrently.
+     */
+    interface Initializer {
+        void initialize(int lane, long[] registers, long[] memory);
+    }
+
+    /**
+     * Takes the final registers and memory of a lane, which are only valid during the call. Lanes of different
+     * blocks are collected concurrently.
+     */
+    interface Collector {
+        void collect(int lane, long[] registers, long[] memory);
+    }
+
+    /**
+     * Runs the schedule on every lane.
+     * @param tripCounts per lane, the value its mov LC sets instead of the schedule's, or null to keep it
+     * @return the counts of all lanes together: cycles, bundles and branches summed over the lanes
+     * @throws IllegalStateException if a lane runs for more than maxCycles or accesses memory out of range
+     */
+    Simulator.Result run(int lanes, int memoryWords, long[] tripCounts, Initializer initializer, Collector collector,
+                         long maxCycles) {
+        // Blocks of lanes with the same trip count
+        List<int[]> blocks = new ArrayList<>();
+        if (tripCounts == null) {
+            for (int first = 0; first < lanes; first += BLOCK_LANES)
+                blocks.add(IntStream.range(first, Math.min(lanes, first + BLOCK_LANES)).toArray());
+        } else {
+            Map<Long, List<Integer>> groups = new HashMap<>();
+            for (int lane = 0; lane < lanes; lane++)
+                groups.computeIfAbsent(tripCounts[lane], c -> new ArrayList<>()).add(lane);
+            for (List<Integer> group : groups.values())
+                for (int first = 0; first < group.size(); first += BLOCK_LANES)
+                    blocks.add(group.subList(first, Math.min(group.size(), first + BLOCK_LANES)).stream()
+                            .mapToInt(Integer::intValue).toArray());
+        }
+
+        Simulator.Result[] results = new Simulator.Result[blocks.size()];
+        IntStream.range(0, blocks.size()).parallel().forEach(b -> {
+            int[] block = blocks.get(b);
+            Lanes state = new Lanes(block.length, memoryWords);
+            long[][] registers = new long[TILE_LANES][Microarchitecture.REGISTERS];
+            long[][] memory = new long[TILE_LANES][memoryWords];
+            for (int first = 0; first < block.length; first += TILE_LANES) {
+                int count = Math.min(TILE_LANES, block.length - first);
+                for (int t = 0; t < count; t++) {
+                    Arrays.fill(registers[t], 0);
+                    Arrays.fill(memory[t], 0);
+                    initializer.initialize(block[first + t], registers[t], memory[t]);
+                }
+                state.transpose(first, count, registers, memory, true);
+            }
+            Long tripCount = tripCounts == null ? null : tripCounts[block[0]];
+            results[b] = run(state, tripCount, maxCycles);
+            for (int first = 0; first < block.length; first += TILE_LANES) {
+                int count = Math.min(TILE_LANES, block.length - first);
+                state.transpose(first, count, registers, memory, false);
+                for (int t = 0; t < count; t++)
+                    collector.collect(block[first + t], registers[t], memory[t]);
+            }
+        });
+
+        Simulator.Result total = new Simulator.Result();
+        for (int b = 0; b < results.length; b++) {
+            int width = blocks.get(b).length;
+            total.cycles += results[b].cycles * width;
+            total.bundlesIssued += results[b].bundlesIssued * width;
+            total.branchesTaken += results[b].branchesTaken * width;
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+                total.executed[slot] += results[b].executed[slot] * width;
+                total.squashed[slot] += results[b].squashed[slot] * width;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The registers and memories of a block of lanes, register r of lane l at r * width + l and word w of its memory
+     * at w * width + l. Predicates, the loop counters and the rotation are the same in every lane.
+     */
+    private static class Lanes {
+        final int width, words;
+        final long[] registers, memory;
+        final boolean[] predicates = new boolean[Microarchitecture.REGISTERS];
+        long lc, ec;
+        int rrb;
+
+        Lanes(int width, int words) {
+            this.width = width;
+            this.words = words;
+            registers = new long[Microarchitecture.REGISTERS * width];
+            memory = new long[words * width];
+        }
+
+        /**
+         * Copies the registers and memories of count lanes from the given first one into the lanes, or out of them.
+         * Going a tile of lanes at a time keeps the lane-major side reading and writing whole cache lines.
+         */
+        private void transpose(int first, int count, long[][] laneRegisters, long[][] laneMemory, boolean in) {
+            transpose(registers, first, count, laneRegisters, in);
+            transpose(memory, first, count, laneMemory, in);
+        }
+
+        private void transpose(long[] lanes, int first, int count, long[][] perLane, boolean in) {
+            int length = perLane[0].length;
+            for (int i = 0; i < length; i++) {
+                int row = i * width + first;
+                for (int t = 0; t < count; t++) {
+                    if (in)
+                        lanes[row + t] = perLane[t][i];
+                    else
+                        perLane[t][i] = lanes[row + t];
+                }
+            }
+        }
+
+        private int physical(int name) {
+            return name < Simulator.ROTATING_START ? name :
+                    Simulator.ROTATING_START + Math.floorMod(name - Simulator.ROTATING_START - rrb, Simulator.ROTATING);
+        }
+    }
+
+    private Simulator.Result run(Lanes state, Long tripCount, long maxCycles) {
+        Simulator.Result result = new Simulator.Result();
+        int width = state.width;
+        long[] registers = state.registers, memory = state.memory;
+
+        // Writes in flight, by the cycle they land in modulo the ring size: a register row or a scalar target, and
+        // for stores the word each lane writes
+        int ring = schedule.maximumLatency() + 1;
+        int[][] targets = new int[ring][Microarchitecture.PIPELINE_WIDTH];
+        long[][][] values = new long[ring][Microarchitecture.PIPELINE_WIDTH][width];
+        int[][][] addresses = new int[ring][Microarchitecture.PIPELINE_WIDTH][width];
+        long[][] scalars = new long[ring][Microarchitecture.PIPELINE_WIDTH];
+        int[] pending = new int[ring];
+        long lastWrite = 0;
+
+        int pc = 0;
+        long cycle = 0;
+        while (pc < schedule.bundles) {
+            if (cycle == maxCycles)
+                throw new IllegalStateException(String.format("still running after %d cycles, at bundle %d",
+                        cycle, pc));
+            int now = (int) (cycle % ring);
+            for (int w = 0; w < pending[now]; w++)
+                write(state, targets[now][w], values[now][w], addresses[now][w], scalars[now][w]);
+            pending[now] = 0;
+
+            int next = pc + 1;
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+                int op = pc * Microarchitecture.PIPELINE_WIDTH + slot;
+                int opcode = schedule.opcode[op];
+                if (opcode == DecodedSchedule.NOP)
+                    continue;
+                if (schedule.predicate[op] != DecodedSchedule.NO_PREDICATE &&
+                        !state.predicates[state.physical(schedule.predicate[op])]) {
+                    result.squashed[slot]++;
+                    continue;
+                }
+                result.executed[slot]++;
+
+                if (opcode == DecodedSchedule.LOOP) {
+                    if (state.lc > 0) {
+                        state.lc--;
+                        next = (int) schedule.immediate[op];
+                        result.branchesTaken++;
+                    }
+                    continue;
+                }
+                if (opcode == DecodedSchedule.LOOP_PIP) {
+                    if (state.lc > 0 || state.ec > 0) {
+                        boolean filling = state.lc > 0;
+                        if (filling)
+                            state.lc--;
+                        else
+                            state.ec--;
+                        state.rrb++;
+                        state.predicates[state.physical(Simulator.ROTATING_START)] = filling;
+                        next = (int) schedule.immediate[op];
+                        result.branchesTaken++;
+                    }
+                    continue;
+                }
+
+                long lands = cycle + schedule.latency[op];
+                int at = (int) (lands % ring);
+                int w = pending[at]++;
+                long[] out = values[at][w];
+                int a = state.physical(schedule.operandA[op]) * width;
+                int b = state.physical(schedule.operandB[op]) * width;
+                long immediate = schedule.immediate[op];
+                int target = state.physical(schedule.destination[op]) * width;
+                switch (opcode) {
+                    case DecodedSchedule.ADD -> {
+                        for (int l = 0; l < width; l++)
+                            out[l] = registers[a + l] + registers[b + l];
+                    }
+                    case DecodedSchedule.SUB -> {
+                        for (int l = 0; l < width; l++)
+                            out[l] = registers[a + l] - registers[b + l];
+                    }
+                    case DecodedSchedule.MULU -> {
+                        for (int l = 0; l < width; l++)
+                            out[l] = registers[a + l] * registers[b + l];
+                    }
+                    case DecodedSchedule.ADDI -> {
+                        for (int l = 0; l < width; l++)
+                            out[l] = registers[a + l] + immediate;
+                    }
+                    case DecodedSchedule.MOV -> System.arraycopy(registers, a, out, 0, width);
+                    case DecodedSchedule.MOVI -> Arrays.fill(out, immediate);
+                    case DecodedSchedule.LD -> {
+                        for (int l = 0; l < width; l++)
+                            out[l] = memory[address(state, registers[a + l] + immediate, cycle, pc) * width + l];
+                    }
+                    case DecodedSchedule.ST -> {
+                        int[] words = addresses[at][w];
+                        for (int l = 0; l < width; l++)
+                            words[l] = address(state, registers[b + l] + immediate, cycle, pc);
+                        System.arraycopy(registers, a, out, 0, width);
+                        target = STORE;
+                    }
+                    case DecodedSchedule.MOVP -> {
+                        target = PREDICATE + state.physical(schedule.destination[op]);
+                        scalars[at][w] = immediate;
+                    }
+                    case DecodedSchedule.MOV_LC -> {
+                        target = LC;
+                        scalars[at][w] = tripCount == null ? immediate : tripCount;
+                    }
+                    case DecodedSchedule.MOV_EC -> {
+                        target = EC;
+                        scalars[at][w] = immediate;
+                    }
+                    default -> throw new IllegalStateException(String.format("unknown opcode %d", opcode));
+                }
+                targets[at][w] = target;
+                lastWrite = Math.max(lastWrite, lands);
+            }
+            result.bundlesIssued++;
+            pc = next;
+            cycle++;
+        }
+
+        for (long c = cycle; c < lastWrite + 1; c++) {
+            int now = (int) (c % ring);
+            for (int w = 0; w < pending[now]; w++)
+                write(state, targets[now][w], values[now][w], addresses[now][w], scalars[now][w]);
+            pending[now] = 0;
+        }
+        result.cycles = Math.max(cycle, lastWrite);
+        return result;
+    }
+
+    // Targets of a write in flight besides register rows, which are given by their offset
+    private static final int PREDICATE = -Microarchitecture.REGISTERS - 4, LC = -3, EC = -2, STORE = -1;
+
+    private static void write(Lanes state, int target, long[] values, int[] words, long scalar) {
+        int width = state.width;
+        if (target >= 0) {
+            System.arraycopy(values, 0, state.registers, target, width);
+        } else if (target == STORE) {
+            for (int l = 0; l < width; l++)
+                state.memory[words[l] * width + l] = values[l];
+        } else if (target == LC) {
+            state.lc = scalar;
+        } else if (target == EC) {
+            state.ec = scalar;
+        } else {
+            state.predicates[target - PREDICATE] = scalar != 0;
+        }
+    }
+
+    private static int address(Lanes state, long address, long cycle, int pc) {
+        if (address < 0 || address >= state.words)
+            throw new IllegalStateException(String.format("cycle %d, bundle %d: address %d is outside the %d words "
+                    + "of memory", cycle, pc, address, state.words));
+        return (int) address;
+    }
+}
@@ -0,0 +1,251 @@
+import Instructions.Instruction;
+import Microarchitecture.RegisterAllocator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Micro-benchmarks for the phases of the scheduler: parsing, dependency analysis, placing instructions for both
+ * back-ends (the pipelined one also on a kernel with loop-carried recurrences, which raise the recurrence bound
+ * on the initiation interval and can make the modulo scheduler evict operations and escalate the interval),
+ * register allocation, loop preparation and dumping.
+ *
+ * Every phase runs on synthetic kernels for each combination of program size and loop body size. Each
+ * invocation gets freshly prepared input outside the timed region, since most phases rewrite the schedule they
+ * work on. Besides wall time, the bytes allocated by the benchmark thread and the collector activity during the
+ * measurement are reported per invocation.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./bench.sh --sizes 256,1024 --bodies 16,64 --filter schedule
+ */
+public class Benchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile Object sink;
+
+    private int[] sizes = {128, 512, 2048};
+    private int[] bodies = {8, 32, 128};
+    private String filter = "";
+    private long warmupMillis = 1000, measureMillis = 2000;
+    private String csv = null;
+
+    public static void main(String[] args) throws IOException {
+        Benchmark benchmark = new Benchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes" -> benchmark.sizes = parseList(args[++i]);
+                case "--bodies" -> benchmark.bodies = parseList(args[++i]);
+                case "--filter" -> benchmark.filter = args[++i];
+                case "--warmup-ms" -> benchmark.warmupMillis = Long.parseLong(args[++i]);
+                case "--measure-ms" -> benchmark.measureMillis = Long.parseLong(args[++i]);
+                case "--csv" -> benchmark.csv = args[++i];
+                default -> {
+                    System.out.print("usage: java Benchmark [--sizes n,...] [--bodies n,...] [--filter name] " +
+                            "[--warmup-ms ms] [--measure-ms ms] [--csv path]\n");
+                    System.exit(0);
+                }
+            }
+        }
+        benchmark.run();
+    }
+
+    private void run() throws IOException {
+        Path dumpTarget = Files.createTempFile("benchmark", ".json");
+        List<Result> results = new ArrayList<>();
+
+        System.out.printf("%-32s %7s %6s %14s %12s %14s %6s %8s\n",
+                "benchmark", "size", "body", "ns/op", "+- ns", "B/op", "gc", "gc ms");
+        for (int size : sizes) {
+            for (int body : bodies) {
+                if (body + 2 > size)
+                    continue;
+                for (Case c : cases(size, body, dumpTarget)) {
+                    if (!c.name.contains(filter))
+                        continue;
+                    Result r = measure(c, size, body);
+                    results.add(r);
+                    System.out.printf("%-32s %7d %6d %14.0f %12.0f %14.0f %6d %8d\n",
+                            r.name, r.size, r.body, r.meanNanos, r.stddevNanos, r.bytesPerOp, r.gcCount, r.gcMillis);
+                }
+            }
+        }
+        Files.deleteIfExists(dumpTarget);
+
+        if (csv != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(csv))) {
+                writer.println("benchmark,size,body,invocations,ns_per_op,ns_stddev,bytes_per_op,gc_count,gc_ms");
+                for (Result r : results)
+                    writer.printf("%s,%d,%d,%d,%.0f,%.0f,%.0f,%d,%d\n", r.name, r.size, r.body, r.invocations,
+                            r.meanNanos, r.stddevNanos, r.bytesPerOp, r.gcCount, r.gcMillis);
+            }
+        }
+    }
+
+    private List<Case> cases(int size, int body, Path dumpTarget) throws IOException {
+        String source = String.format("kernel(%d, %d)", size, body);
+        String text = kernel(size, body, false);
+        String recurrent = kernel(size, body, true);
+        AnalyzedProgram analyzed = Scheduler.analyze(IO.parseProgram(text, source));
+        AnalyzedProgram analyzedRecurrent = Scheduler.analyze(IO.parseProgram(recurrent, source));
+        Schedule dumped = Scheduler.schedule(analyzed, true, new RegisterAllocator());
+
+        return List.of(
+                new Case("parse", () -> text, t -> parse((String) t, source)),
+                new Case("analyze", () -> parse(text, source), p -> Scheduler.analyze(program(p), false)),
+                new Case("analyze.parallel", () -> parse(text, source), p -> Scheduler.analyze(program(p), true)),
+                new Case("schedule.sequential", () -> analyzed,
+                        a -> Scheduler.placeInstructions((AnalyzedProgram) a, false, new RegisterAllocator())),
+                new Case("schedule.pipelined", () -> analyzed,
+                        a -> Scheduler.placeInstructions((AnalyzedProgram) a, true, new RegisterAllocator())),
+                // Starts the modulo scheduler from the recurrence bound; on some sizes it escalates past it
+                new Case("schedule.pipelined.recurrence", () -> analyzedRecurrent,
+                        a -> Scheduler.placeInstructions((AnalyzedProgram) a, true, new RegisterAllocator())),
+                new Case("allocateRegisters.sequential",
+                        () -> Scheduler.placeInstructions(analyzed, false, new RegisterAllocator()),
+                        s -> { ((Schedule) s).allocateRegisters(); return s; }),
+                new Case("allocateRegisters.pipelined",
+                        () -> Scheduler.placeInstructions(analyzed, true, new RegisterAllocator()),
+                        s -> { ((Schedule) s).allocateRegisters(); return s; }),
+                new Case("prepareLoop", () -> {
+                            Schedule s = Scheduler.placeInstructions(analyzed, true, new RegisterAllocator());
+                            s.allocateRegisters();
+                            return s;
+                        },
+                        s -> { ((Schedule) s).prepareLoop(); return s; }),
+                new Case("dump", () -> dumped, s -> {
+                    try {
+                        IO.dump((Schedule) s, dumpTarget.toString());
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return s;
+                }));
+    }
+
+    private Result measure(Case c, int size, int body) {
+        run(c, warmupMillis);
+
+        long gcCount = gcCount(), gcMillis = gcMillis();
+        long[] samples = run(c, measureMillis);
+        Result r = new Result(c.name, size, body);
+        r.invocations = samples.length / 2;
+        r.gcCount = gcCount() - gcCount;
+        r.gcMillis = gcMillis() - gcMillis;
+
+        double sum = 0, bytes = 0;
+        for (int i = 0; i < samples.length; i += 2) {
+            sum += samples[i];
+            bytes += samples[i + 1];
+        }
+        r.meanNanos = sum / r.invocations;
+        r.bytesPerOp = bytes / r.invocations;
+        double squares = 0;
+        for (int i = 0; i < samples.length; i += 2)
+            squares += (samples[i] - r.meanNanos) * (samples[i] - r.meanNanos);
+        r.stddevNanos = Math.sqrt(squares / r.invocations);
+        return r;
+    }
+
+    /**
+     * Invokes a case until the time budget is spent, at least three times.
+     * @return pairs of (elapsed nanoseconds, allocated bytes), one per invocation
+     */
+    private long[] run(Case c, long budgetMillis) {
+        long thread = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + budgetMillis * 1_000_000;
+        long[] samples = new long[64];
+        int n = 0;
+        while (n < 6 || System.nanoTime() < deadline) {
+            Object input = c.setup.get();
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            sink = c.action.apply(input);
+            long elapsed = System.nanoTime() - start;
+            allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+
+            if (n == samples.length)
+                samples = Arrays.copyOf(samples, n * 2);
+            samples[n++] = elapsed;
+            samples[n++] = allocated;
+        }
+        return Arrays.copyOf(samples, n);
+    }
+
+    /**
+     * Generates a kernel in the input.json format with a loop body of the given size. With recurrence set, the
+     * loop carries values from one iteration to the next through multiplications. Their latency around each
+     * cycle raises the lower bound the modulo scheduler starts from, and where the body does not fit at that
+     * interval, it evicts and forces placements before giving up on it and trying the next one.
+     */
+    static String kernel(int size, int body, boolean recurrence) {
+        KernelGenerator generator = KernelGenerator.ofSize(size, body, 1);
+        if (recurrence) {
+            generator.recurrences = Math.min(4, (body - 2) / 2);
+            generator.muluShare = 0.5;
+        }
+        return generator.toJson();
+    }
+
+    private static ArrayList<Instruction> parse(String text, String source) {
+        try {
+            return IO.parseProgram(text, source);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Instruction> program(Object program) {
+        return (ArrayList<Instruction>) program;
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static class Case {
+        final String name;
+        final Supplier<Object> setup;
+        final Function<Object, Object> action;
+
+        Case(String name, Supplier<Object> setup, Function<Object, Object> action) {
+            this.name = name;
+            this.setup = setup;
+            this.action = action;
+        }
+    }
+
+    private static class Result {
+        final String name;
+        final int size, body;
+        int invocations;
+        double meanNanos, stddevNanos, bytesPerOp;
+        long gcCount, gcMillis;
+
+        Result(String name, int size, int body) {
+            this.name = name;
+            this.size = size;
+            this.body = body;
+        }
+    }
+}
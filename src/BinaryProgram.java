@@ -0,0 +1,247 @@
+import Instructions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Programs in a compact binary form, for inputs large enough that reading JSON dominates. A header of magic,
+ * version and instruction count is followed by one fixed-width record per instruction: opcode, destination,
+ * operand A, operand B and immediate, all little-endian ints. Loading maps the file and builds every instruction
+ * straight from its record.
+ *
+ * Immediates are stored as values, with a flag on the opcode for the ones written in hexadecimal. The addi and mov
+ * immediates that are printed as written come back in canonical form, so leading zeros, a '+' sign or upper case
+ * hex digits do not survive a round trip.
+ *
+ * Converts between the formats, in the direction given by the input:
+ * ./build.sh && ./convert.sh input.json input.vir
+ */
+public class BinaryProgram {
+    // "VIR" and a zero byte
+    static final int MAGIC = 0x00524956;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int RECORD_SIZE = 5 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int NOP = 0, ADD = 1, SUB = 2, MULU = 3, ADDI = 4, LD = 5, ST = 6, MOV = 7, MOVI = 8,
+            MOVP = 9, MOV_LOOP = 10, LOOP = 11, LOOP_PIP = 12;
+    private static final int OPCODE_MASK = 0xff;
+    private static final int HEX = 0x100;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.print("usage: java BinaryProgram <input.json | input.vir> <output.vir | output.json>\n");
+            System.exit(0);
+        }
+        Path input = Paths.get(args[0]), output = Paths.get(args[1]);
+        if (isBinary(input)) {
+            try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                writeJson(input, writer);
+            }
+        } else {
+            write(IO.parseInstructions(args[0]), output);
+        }
+    }
+
+    /**
+     * @return whether the file starts with the magic of the binary format
+     */
+    static boolean isBinary(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = in.readNBytes(Integer.BYTES);
+            return magic.length == Integer.BYTES &&
+                    ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+        }
+    }
+
+    static ArrayList<Instruction> read(Path path) throws IOException {
+        ByteBuffer records = map(path);
+        int count = records.getInt(2 * Integer.BYTES);
+        ArrayList<Instruction> program = new ArrayList<>(count);
+        for (int address = 0; address < count; address++) {
+            int at = HEADER_SIZE + address * RECORD_SIZE;
+            int opcode = records.getInt(at), destination = records.getInt(at + 4), a = records.getInt(at + 8),
+                    b = records.getInt(at + 12), immediate = records.getInt(at + 16);
+            program.add(switch (opcode & OPCODE_MASK) {
+                case NOP -> new Nop(address);
+                case ADD -> new Add(address, destination, a, b);
+                case SUB -> new Sub(address, destination, a, b);
+                case MULU -> new Mulu(address, destination, a, b);
+                case ADDI -> new Addi(address, destination, a, immediateText(opcode, immediate));
+                case LD -> new Ld(address, destination, immediate, a);
+                case ST -> new St(address, a, immediate, b);
+                case MOV -> new Mov(address, destination, a);
+                case MOVI -> new Movi(address, destination, immediateText(opcode, immediate));
+                case MOVP -> new MovP(address, destination, immediate != 0 ? "true" : "false");
+                case MOV_LOOP -> new MovLoop(address, destination == 0 ? "LC" : "EC", immediate);
+                case LOOP -> new Loop(address, immediate);
+                case LOOP_PIP -> new LoopPip(address, immediate);
+                default -> throw new IOException(String.format("%s: instruction %d has unknown opcode %d",
+                        path, address, opcode & OPCODE_MASK));
+            });
+        }
+        return program;
+    }
+
+    static void write(List<Instruction> program, Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(program.size());
+            for (Instruction i : program) {
+                if (buffer.remaining() < RECORD_SIZE)
+                    flush(buffer, channel);
+                putRecord(i, buffer, path);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    /**
+     * Writes the program of a binary file in the input.json dialect.
+     */
+    static void writeJson(Path path, Writer writer) throws IOException {
+        ByteBuffer records = map(path);
+        int count = records.getInt(2 * Integer.BYTES);
+        StringBuilder line = new StringBuilder();
+        writer.write("[\n");
+        for (int address = 0; address < count; address++) {
+            int at = HEADER_SIZE + address * RECORD_SIZE;
+            int opcode = records.getInt(at), destination = records.getInt(at + 4), a = records.getInt(at + 8),
+                    b = records.getInt(at + 12), immediate = records.getInt(at + 16);
+            line.setLength(0);
+            line.append("\t\"");
+            int op = opcode & OPCODE_MASK;
+            switch (op) {
+                case NOP -> line.append("nop");
+                case ADD, SUB, MULU -> line.append(op == ADD ? "add" : op == SUB ? "sub" : "mulu")
+                        .append(" x").append(destination).append(", x").append(a).append(", x").append(b);
+                case ADDI -> line.append("addi x").append(destination).append(", x").append(a)
+                        .append(", ").append(immediateText(opcode, immediate));
+                case LD -> line.append("ld x").append(destination)
+                        .append(", ").append(immediate).append("(x").append(a).append(')');
+                case ST -> line.append("st x").append(a)
+                        .append(", ").append(immediate).append("(x").append(b).append(')');
+                case MOV -> line.append("mov x").append(destination).append(", x").append(a);
+                case MOVI -> line.append("mov x").append(destination)
+                        .append(", ").append(immediateText(opcode, immediate));
+                case MOVP -> line.append("mov p").append(destination).append(", ").append(immediate != 0);
+                case MOV_LOOP -> line.append("mov ").append(destination == 0 ? "LC" : "EC")
+                        .append(", ").append(immediate);
+                case LOOP -> line.append("loop ").append(immediate);
+                case LOOP_PIP -> line.append("loop.pip ").append(immediate);
+                default -> throw new IOException(String.format("%s: instruction %d has unknown opcode %d",
+                        path, address, op));
+            }
+            line.append(address == count - 1 ? "\"\n" : "\",\n");
+            writer.append(line);
+        }
+        writer.write("]\n");
+    }
+
+    /**
+     * Maps the file and checks its header against its size.
+     */
+    private static ByteBuffer map(Path path) throws IOException {
+        MappedByteBuffer records;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException(String.format("%s: too short for a binary program", path));
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        records.order(ByteOrder.LITTLE_ENDIAN);
+        if (records.getInt(0) != MAGIC)
+            throw new IOException(String.format("%s: not a binary program", path));
+        if (records.getInt(Integer.BYTES) != VERSION)
+            throw new IOException(String.format("%s: unsupported version %d, expected %d",
+                    path, records.getInt(Integer.BYTES), VERSION));
+        long count = records.getInt(2 * Integer.BYTES);
+        if (count < 0 || HEADER_SIZE + count * RECORD_SIZE != records.capacity())
+            throw new IOException(String.format("%s: %d bytes do not hold %d instructions",
+                    path, records.capacity(), count));
+        return records;
+    }
+
+    private static void putRecord(Instruction i, ByteBuffer buffer, Path path) throws IOException {
+        int opcode, destination = 0, a = 0, b = 0, immediate = 0;
+        if (i instanceof Add || i instanceof Sub || i instanceof Mulu) {
+            opcode = i instanceof Add ? ADD : i instanceof Sub ? SUB : MULU;
+            destination = ((Producer) i).getDestination();
+            a = ((Producer) i).getOperandA();
+            b = ((DoubleConsumer) i).getOperandB();
+        } else if (i instanceof Addi || i instanceof Movi) {
+            String text = ((Immediate) i).getImmediate();
+            opcode = (i instanceof Addi ? ADDI : MOVI) | (isHex(text) ? HEX : 0);
+            destination = ((Producer) i).getDestination();
+            a = i instanceof Addi ? ((Producer) i).getOperandA() : 0;
+            immediate = isHex(text) ? Integer.parseInt(text, 2, text.length(), 16) : Integer.parseInt(text);
+        } else if (i instanceof Ld) {
+            opcode = LD;
+            destination = ((Ld) i).getDestination();
+            a = ((Ld) i).getOperandA();
+            immediate = ((Ld) i).getOffset();
+        } else if (i instanceof St) {
+            opcode = ST;
+            a = ((St) i).getOperandA();
+            b = ((St) i).getOperandB();
+            immediate = ((St) i).getOffset();
+        } else if (i instanceof Mov) {
+            opcode = MOV;
+            destination = ((Mov) i).getDestination();
+            a = ((Mov) i).getOperandA();
+        } else if (i instanceof MovP) {
+            if (!((MovP) i).getImmediate().equals("true") && !((MovP) i).getImmediate().equals("false"))
+                throw new IOException(String.format("%s: instruction %d '%s' has no binary form",
+                        path, i.getAddress(), i));
+            opcode = MOVP;
+            destination = ((MovP) i).getDestination();
+            immediate = ((MovP) i).getImmediate().equals("true") ? 1 : 0;
+        } else if (i instanceof MovLoop) {
+            opcode = MOV_LOOP;
+            destination = ((MovLoop) i).getDestination().equals("LC") ? 0 : 1;
+            immediate = ((MovLoop) i).getImmediate();
+        } else if (i instanceof LoopPip) {
+            opcode = LOOP_PIP;
+            immediate = ((LoopPip) i).getTarget();
+        } else if (i instanceof Loop) {
+            opcode = LOOP;
+            immediate = ((Loop) i).getTarget();
+        } else if (i instanceof Nop) {
+            opcode = NOP;
+        } else {
+            throw new IOException(String.format("%s: instruction %d '%s' has no binary form", path, i.getAddress(), i));
+        }
+        buffer.putInt(opcode).putInt(destination).putInt(a).putInt(b).putInt(immediate);
+    }
+
+    private static boolean isHex(String immediate) {
+        return immediate.length() > 2 && immediate.charAt(0) == '0' &&
+                (immediate.charAt(1) == 'x' || immediate.charAt(1) == 'X');
+    }
+
+    private static String immediateText(int opcode, int immediate) {
+        if ((opcode & HEX) == 0)
+            return Integer.toString(immediate);
+        return immediate < 0 ? "0x-" + Integer.toHexString(-immediate) : "0x" + Integer.toHexString(immediate);
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
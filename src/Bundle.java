@@ -1,49 +1,136 @@
 import Instructions.Instruction;
+import Instructions.Location;
 import Instructions.Nop;
 import Microarchitecture.Microarchitecture;
 
-import java.util.ArrayList;
-
-public class Bundle {
-    private final ArrayList<Instruction> bundle;
-    private int address;
-    public Bundle(int pc) {
-        this.address = pc;
-        bundle = new ArrayList<>(Microarchitecture.PIPELINE_WIDTH);
-        for (int i = 0; i < Microarchitecture.PIPELINE_WIDTH; i++) {
-            Nop nop = new Nop(pc);
-            nop.setScheduledSlot(i);
-            bundle.add(nop);
-        }
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * One VLIW bundle. Which slots are taken is kept in a bitmask, and only taken slots hold an instruction: empty
+ * slots are read as a single shared Nop, which is only there to print them. Iterating a bundle visits the
+ * instructions of its taken slots in slot order.
+ *
+ * A bundle's address is its place in the BundleList holding it, and the instructions it holds report that address
+ * as their scheduled address.
+ */
+public class Bundle implements Iterable<Instruction>, Location {
+    private static final Nop EMPTY = new Nop(0);
+
+    private final Instruction[] slots;
+    // Bit i is set when slot i holds an instruction
+    private int occupied;
+    private BundleList list;
+    private int position;
+    public Bundle() {
+        slots = new Instruction[Microarchitecture.PIPELINE_WIDTH];
+    }
+
+    @Override
+    public int getAddress() {
+        return list.addressOf(position);
+    }
+
+    void setPosition(BundleList list, int position) {
+        this.list = list;
+        this.position = position;
     }
 
-    protected ArrayList<Instruction> getBundle() {
-        return bundle;
+    /**
+     * @return mask of the slots not taken
+     */
+    int getFreeSlots() {
+        return ~occupied & ((1 << Microarchitecture.PIPELINE_WIDTH) - 1);
     }
-    protected int getAddress() {
-        return address;
+
+    protected boolean isFree(int slot) {
+        return (occupied & (1 << slot)) == 0;
+    }
+
+    /**
+     * @return the instruction in the slot, or the shared empty Nop
+     */
+    protected Instruction get(int slot) {
+        return isFree(slot) ? EMPTY : slots[slot];
+    }
+
+    protected void set(int slot, Instruction instruction) {
+        slots[slot] = instruction;
+        occupied |= 1 << slot;
+        instruction.setLocation(this);
+        slotsChanged();
+    }
+
+    protected void clear(int slot) {
+        slots[slot] = null;
+        occupied &= ~(1 << slot);
+        slotsChanged();
     }
-    protected void setAddress(int address) {
-        this.address = address;
+
+    private void slotsChanged() {
+        if (list != null)
+            list.slotsChanged(this, position);
     }
 
     protected boolean insertIntoSlot(Instruction instruction) {
         for (Integer i : instruction.getPipelineSlots()) {
-            if (bundle.get(i) instanceof Nop && !((Nop)bundle.get(i)).isReserved()) {
-                instruction.setScheduledAddress(address);
-                instruction.setScheduledSlot(i);
-                bundle.set(i, instruction);
+            if (insertIntoSlot(instruction, i))
                 return true;
-            }
         }
         return false;
     }
 
+    protected boolean insertIntoSlot(Instruction instruction, int slot) {
+        if (!isFree(slot))
+            return false;
+        instruction.setScheduledSlot(slot);
+        // A nop of the program takes its slot without filling it
+        if (instruction instanceof Nop)
+            instruction.setScheduledAddress(getAddress());
+        else
+            set(slot, instruction);
+        return true;
+    }
+
+    @Override
+    public void forEach(Consumer<? super Instruction> action) {
+        for (int taken = occupied; taken != 0; taken &= taken - 1)
+            action.accept(slots[Integer.numberOfTrailingZeros(taken)]);
+    }
+
+    @Override
+    public Iterator<Instruction> iterator() {
+        return new Iterator<>() {
+            private int taken = occupied;
+
+            @Override
+            public boolean hasNext() {
+                return taken != 0;
+            }
+
+            @Override
+            public Instruction next() {
+                if (taken == 0)
+                    throw new NoSuchElementException();
+                Instruction i = slots[Integer.numberOfTrailingZeros(taken)];
+                taken &= taken - 1;
+                return i;
+            }
+        };
+    }
+
+    protected Stream<Instruction> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (Instruction i : bundle)
-            sb.append(String.format(" | %-25s", i.toString()));
+        for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++)
+            sb.append(String.format(" | %-25s", get(slot).toString()));
         return sb.toString();
     }
 }
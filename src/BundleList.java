@@ -0,0 +1,160 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The bundles of a schedule, kept in a gap buffer. A bundle does not store its address but its position in the
+ * buffer: positions before the gap are addresses, positions after it are addresses plus the gap length. Inserting
+ * at the gap shrinks the gap by one, which moves every later bundle, and every instruction in it, one address
+ * down without touching them.
+ *
+ * The gap moves to wherever the next bundle is inserted, at a cost proportional to the distance; schedules insert
+ * near the same spot over and over (the loop end, the end of the program), so that is usually close to nothing.
+ *
+ * Over the positions of the buffer sits a segment tree of the free slots of every bundle, a leaf per position and
+ * the union of its leaves in every inner node; the gap is made of empty leaves. Finding the first bundle at or
+ * after an address with a free slot for a functional unit class walks up and down the tree once, instead of
+ * testing every full bundle on the way.
+ */
+public class BundleList extends AbstractList<Bundle> implements RandomAccess {
+    private Bundle[] buffer = new Bundle[16];
+    // The gap is [gapStart, gapEnd)
+    private int gapStart = 0, gapEnd = buffer.length;
+    // Free slot masks: the leaf of position p is free[buffer.length + p], the root is free[1]
+    private byte[] free = new byte[2 * buffer.length];
+
+    @Override
+    public Bundle get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(String.format("bundle %d of %d", index, size()));
+        return buffer[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    @Override
+    public int size() {
+        return buffer.length - (gapEnd - gapStart);
+    }
+
+    @Override
+    public void add(int index, Bundle bundle) {
+        if (index < 0 || index > size())
+            throw new IndexOutOfBoundsException(String.format("bundle %d of %d", index, size()));
+        if (gapStart == gapEnd)
+            grow();
+        moveGap(index);
+        buffer[gapStart] = bundle;
+        bundle.setPosition(this, gapStart);
+        refresh(gapStart++);
+        modCount++;
+    }
+
+    @Override
+    public Bundle remove(int index) {
+        Bundle bundle = get(index);
+        removeRange(index, index + 1);
+        return bundle;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        moveGap(toIndex);
+        Arrays.fill(buffer, fromIndex, toIndex, null);
+        refresh(fromIndex, toIndex);
+        gapStart = fromIndex;
+        modCount++;
+    }
+
+    /**
+     * @return the address of the bundle at the given position of the buffer
+     */
+    int addressOf(int position) {
+        return position < gapStart ? position : position - (gapEnd - gapStart);
+    }
+
+    /**
+     * @param slots mask of the pipeline slots of a functional unit class
+     * @return the first address at or after the given one whose bundle has one of the slots free, or the number of
+     * bundles if there is none
+     */
+    int nextFree(int index, int slots) {
+        if (index >= size())
+            return index;
+        int node = buffer.length + (index < gapStart ? index : index + gapEnd - gapStart);
+        if ((free[node] & slots) == 0) {
+            // Up until a right sibling has a free slot, then down to its leftmost leaf that has
+            while ((node & 1) == 1 || (free[node + 1] & slots) == 0) {
+                node >>= 1;
+                if (node == 1)
+                    return size();
+            }
+            node++;
+            while (node < buffer.length)
+                node = (free[2 * node] & slots) != 0 ? 2 * node : 2 * node + 1;
+        }
+        return addressOf(node - buffer.length);
+    }
+
+    /**
+     * Updates the tree after the free slots of a bundle changed; bundles no longer in the list are ignored.
+     */
+    void slotsChanged(Bundle bundle, int position) {
+        if (buffer[position] == bundle)
+            refresh(position);
+    }
+
+    private void refresh(int position) {
+        int node = buffer.length + position;
+        free[node] = buffer[position] == null ? 0 : (byte) buffer[position].getFreeSlots();
+        for (node >>= 1; node >= 1; node >>= 1)
+            free[node] = (byte) (free[2 * node] | free[2 * node + 1]);
+    }
+
+    private void refresh(int from, int to) {
+        for (int position = from; position < to; position++)
+            refresh(position);
+    }
+
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(buffer, index, buffer, gapEnd - count, count);
+            gapStart -= count;
+            gapEnd -= count;
+            reposition(gapEnd, gapEnd + count);
+            // Let go of the bundles' old places that are now part of the gap
+            Arrays.fill(buffer, gapStart, Math.min(gapStart + count, gapEnd), null);
+            refresh(gapStart, Math.min(gapStart + count, gapEnd));
+            refresh(gapEnd, gapEnd + count);
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(buffer, gapEnd, buffer, gapStart, count);
+            reposition(gapStart, gapStart + count);
+            gapStart += count;
+            gapEnd += count;
+            Arrays.fill(buffer, Math.max(gapStart, gapEnd - count), gapEnd, null);
+            refresh(gapStart - count, gapStart);
+            refresh(Math.max(gapStart, gapEnd - count), gapEnd);
+        }
+    }
+
+    private void grow() {
+        Bundle[] grown = new Bundle[buffer.length * 2];
+        int tail = buffer.length - gapEnd;
+        System.arraycopy(buffer, 0, grown, 0, gapStart);
+        System.arraycopy(buffer, gapEnd, grown, grown.length - tail, tail);
+        buffer = grown;
+        gapEnd = grown.length - tail;
+        reposition(gapEnd, grown.length);
+        free = new byte[2 * grown.length];
+        for (int position = 0; position < grown.length; position++)
+            if (grown[position] != null)
+                free[grown.length + position] = (byte) grown[position].getFreeSlots();
+        for (int node = grown.length - 1; node >= 1; node--)
+            free[node] = (byte) (free[2 * node] | free[2 * node + 1]);
+    }
+
+    private void reposition(int from, int to) {
+        for (int position = from; position < to; position++)
+            buffer[position].setPosition(this, position);
+    }
+}
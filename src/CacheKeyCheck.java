@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that ScheduleCache keys tell programs apart: every generated kernel is mutated one register operand at a
+ * time, and no two of the resulting programs may share a key, while parsing the same program twice has to give
+ * the same key. Exits with status 1 on any failure.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./cachekey.sh --kernels 16
+ */
+public class CacheKeyCheck {
+    private static final Pattern REGISTER = Pattern.compile("\\bx(\\d+)");
+
+    private int kernels = 8;
+    private long seed = 1;
+    private final Map<String, List<String>> programs = new HashMap<>();
+    private int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        CacheKeyCheck check = new CacheKeyCheck();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--kernels" -> check.kernels = Integer.parseInt(args[++i]);
+                case "--seed" -> check.seed = Long.parseLong(args[++i]);
+                default -> {
+                    System.out.print("usage: java CacheKeyCheck [--kernels n] [--seed n]\n");
+                    System.exit(0);
+                }
+            }
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private boolean run() throws IOException {
+        // Differ only in the operands of the adds
+        check(List.of("mov x2, 1", "mov x3, 2", "mov x4, 3", "add x5, x2, x3", "add x6, x5, x4"));
+        check(List.of("mov x2, 1", "mov x3, 2", "mov x4, 3", "add x5, x2, x4", "add x6, x5, x5"));
+
+        for (int k = 0; k < kernels; k++) {
+            KernelGenerator generator = KernelGenerator.ofSize(64, 16 + k, seed + k);
+            generator.recurrences = k % 3;
+            List<String> kernel = generator.generate();
+            check(kernel);
+            for (int line = 0; line < kernel.size(); line++) {
+                Matcher m = REGISTER.matcher(kernel.get(line));
+                while (m.find()) {
+                    int register = Integer.parseInt(m.group(1));
+                    List<String> mutated = new ArrayList<>(kernel);
+                    mutated.set(line, kernel.get(line).substring(0, m.start(1)) + (register + 1) % 32
+                            + kernel.get(line).substring(m.end(1)));
+                    check(mutated);
+                }
+            }
+        }
+
+        System.out.printf("%d distinct programs: %d failures\n", programs.size(), failures);
+        return failures == 0;
+    }
+
+    private void check(List<String> program) throws IOException {
+        String key = ScheduleCache.key(IO.parseProgram(program, "check"));
+        if (!key.equals(ScheduleCache.key(IO.parseProgram(program, "check")))) {
+            failures++;
+            System.out.printf("%s: parsing again gives another key\n", program);
+        }
+        List<String> previous = programs.putIfAbsent(key, program);
+        if (previous != null && !previous.equals(program)) {
+            failures++;
+            System.out.printf("%s and %s share key %s\n", previous, program, key);
+        }
+    }
+}
@@ -0,0 +1,944 @@
+import Microarchitecture.Microarchitecture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A finished schedule compiled to JVM bytecode, which runs it with the semantics of Simulator. It pays off for a
+ * schedule run over and over: once the JIT has compiled the generated code, the schedules of the test corpus run
+ * 5-11x as fast as interpreted for plain loops and 5-8x for pipelined ones, whose rotating registers and predicates
+ * are array accesses. Until then it is no faster, and on large pipelined schedules the JIT can take seconds.
+ *
+ * Every bundle becomes a block of straight-line code and every branch a jump between blocks, so the JIT sees the
+ * loops of the schedule as loops. Registers 0 to 31 become locals; the rotating ones stay in the state's array,
+ * indexed by their name and the rotating register base. An operation keeps its result in a local until the end of
+ * its bundle, when results that take a cycle land; results that take longer move down a line of locals of their
+ * slot, one step per bundle, until they land too. This needs every slot to take more than a cycle for one latency
+ * at most and only for results into registers, which holds for every schedule of this machine.
+ *
+ * The class is assembled by hand, since Java 17 has no class-file API, and defined as a hidden class. Its class-file
+ * version predates stack map frames, so the verifier infers them.
+ *
+ * Example execution with run scripts, comparing it with the interpreter after each warmed up for 2 seconds:
+ * ./build.sh && ./compiled.sh given_tests/17/looppip.json 65536 2
+ */
+class CompiledSchedule {
+    private static final int DEFAULT_MEMORY_WORDS = 1 << 16;
+    private static final long MAX_CYCLES = 100_000_000;
+    private static final String CLASS = "CompiledSchedule$Generated";
+    // Values the kernel reads from and leaves in its io array
+    private static final int IO_LC = 0, IO_EC = 1, IO_RRB = 2, IO_CYCLES = 3, IO_BRANCHES = 4, IO_LAST_WRITE = 5;
+
+    /**
+     * The compiled code. counts gets every bundle's issues at its index and the executions of every predicated
+     * operation at bundles plus its index.
+     */
+    interface Kernel {
+        void run(long[] registers, boolean[] predicates, long[] memory, long[] io, long[] counts, long maxCycles);
+    }
+
+    private final DecodedSchedule schedule;
+    private final Kernel kernel;
+
+    private CompiledSchedule(DecodedSchedule schedule, Kernel kernel) {
+        this.schedule = schedule;
+        this.kernel = kernel;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.print("usage: java CompiledSchedule <loop.json | looppip.json> [memory words] [seconds]\n");
+            System.exit(0);
+        }
+        int words = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MEMORY_WORDS;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        try {
+            DecodedSchedule decoded = DecodedSchedule.read(Paths.get(args[0]));
+            long start = System.nanoTime();
+            CompiledSchedule compiled = compile(decoded);
+            System.out.printf("compiled in %.1f ms\n", (System.nanoTime() - start) / 1e6);
+
+            // One run of each from the same fresh state has to end in the same state with the same counts
+            Simulator interpreter = new Simulator(decoded);
+            Simulator.State interpreted = new Simulator.State(words), ran = new Simulator.State(words);
+            Simulator.Result result = interpreter.run(interpreted, MAX_CYCLES);
+            if (!sameEnd(interpreted, ran, result, compiled.run(ran, MAX_CYCLES)))
+                throw new IllegalStateException("the compiled schedule and the interpreter end in different states");
+
+            // Then each runs it over and over, warming up before it is timed; memory carries over between runs
+            double[] rates = new double[2];
+            for (int engine = 0; engine < 2; engine++) {
+                Simulator.State state = engine == 0 ? interpreted : ran;
+                for (int phase = 0; phase < 2; phase++) {
+                    long cycles = 0, deadline = System.nanoTime() + (long) (seconds * 1e9);
+                    start = System.nanoTime();
+                    while (System.nanoTime() < deadline) {
+                        Arrays.fill(state.registers, 0);
+                        Arrays.fill(state.predicates, false);
+                        state.lc = state.ec = state.rrb = 0;
+                        cycles += (engine == 0 ? interpreter.run(state, MAX_CYCLES) :
+                                compiled.run(state, MAX_CYCLES)).cycles;
+                    }
+                    rates[engine] = cycles / ((System.nanoTime() - start) / 1e9);
+                }
+            }
+            System.out.printf("interpreted %.3g cycles/s, compiled %.3g cycles/s, %.1fx\n", rates[0], rates[1],
+                    rates[1] / rates[0]);
+            System.out.print(result.report());
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean sameEnd(Simulator.State a, Simulator.State b, Simulator.Result x, Simulator.Result y) {
+        return Arrays.equals(a.registers, b.registers) && Arrays.equals(a.predicates, b.predicates) &&
+                Arrays.equals(a.memory, b.memory) && a.lc == b.lc && a.ec == b.ec && a.rrb == b.rrb &&
+                x.cycles == y.cycles && x.bundlesIssued == y.bundlesIssued && x.branchesTaken == y.branchesTaken &&
+                Arrays.equals(x.executed, y.executed) && Arrays.equals(x.squashed, y.squashed);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the schedule has a shape the compiled code does not support: a slot taking
+     *                                  more than a cycle for several latencies or for a result that is not a
+     *                                  register, or a bundle with several branches
+     */
+    static CompiledSchedule compile(DecodedSchedule schedule) {
+        byte[] bytes = new Generator(schedule).generate();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            Kernel kernel = (Kernel) lookup.lookupClass().getDeclaredConstructor().newInstance();
+            return new CompiledSchedule(schedule, kernel);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(String.format("cannot load the compiled schedule: %s", e));
+        }
+    }
+
+    /**
+     * Runs the schedule from its first bundle on the given state, which is left as execution ends.
+     * @throws IllegalStateException if it runs for more than maxCycles or accesses memory out of range, after which
+     *                               the state is undefined
+     */
+    Simulator.Result run(Simulator.State state, long maxCycles) {
+        int operations = schedule.opcode.length;
+        long[] io = {state.lc, state.ec, state.rrb, 0, 0, 0};
+        long[] counts = new long[schedule.bundles + operations];
+        kernel.run(state.registers, state.predicates, state.memory, io, counts, maxCycles);
+        state.lc = io[IO_LC];
+        state.ec = io[IO_EC];
+        state.rrb = (int) io[IO_RRB];
+
+        Simulator.Result result = new Simulator.Result();
+        result.bundlesIssued = io[IO_CYCLES];
+        result.cycles = Math.max(io[IO_CYCLES], io[IO_LAST_WRITE]);
+        result.branchesTaken = io[IO_BRANCHES];
+        for (int op = 0; op < operations; op++) {
+            if (schedule.opcode[op] == DecodedSchedule.NOP)
+                continue;
+            int slot = op % Microarchitecture.PIPELINE_WIDTH;
+            long issued = counts[op / Microarchitecture.PIPELINE_WIDTH];
+            long executed = schedule.predicate[op] == DecodedSchedule.NO_PREDICATE ? issued :
+                    counts[schedule.bundles + op];
+            result.executed[slot] += executed;
+            result.squashed[slot] += issued - executed;
+        }
+        return result;
+    }
+
+    // Called by the compiled code
+
+    static int address(long address, long[] memory, long cycle, int bundle) {
+        if (address < 0 || address >= memory.length)
+            throw new IllegalStateException(String.format("cycle %d, bundle %d: address %d is outside the %d words "
+                    + "of memory", cycle, bundle, address, memory.length));
+        return (int) address;
+    }
+
+    static IllegalStateException runaway(long cycle, int bundle) {
+        return new IllegalStateException(String.format("still running after %d cycles, at bundle %d", cycle, bundle));
+    }
+
+    /**
+     * Writes the class of one schedule: a constructor and run, whose locals are laid out as follows.
+     */
+    private static class Generator {
+        private static final int STATIC_REGISTERS = Simulator.ROTATING_START;
+        // Arguments of run after this; maxCycles takes two slots
+        private static final int REGISTERS = 1, PREDICATES = 2, MEMORY = 3, IO = 4, COUNTS = 5, MAX_CYCLES = 6;
+
+        private final DecodedSchedule schedule;
+        private final ConstantPool pool = new ConstantPool();
+        private final Code code = new Code();
+        private int locals = 8;
+        private final int cycle, lc, ec, rrb, branches, lastWrite, taken, filling;
+        // Per static register its local, or -1 if a result that takes more than a cycle writes it and it stays in
+        // the array
+        private final int[] registerLocal = new int[STATIC_REGISTERS];
+        // Per slot: the target, the result and the store address of its operation in the current bundle, the
+        // latency of its results that take more than a cycle or 0, and their line of targets and results, entry
+        // k - 1 landing k bundles from now
+        private final int[] target, value, address, delay;
+        private final int[][] delayedTarget, delayedValue;
+        // Slots with a delay, those with results issued earliest first
+        private final int[] delayOrder;
+
+        Generator(DecodedSchedule schedule) {
+            this.schedule = schedule;
+            if (Integer.bitCount(Simulator.ROTATING) != 1)
+                throw new IllegalArgumentException("the rotating registers are not a power of two");
+            int width = Microarchitecture.PIPELINE_WIDTH;
+            delay = new int[width];
+            boolean[] inArray = new boolean[STATIC_REGISTERS];
+            for (int op = 0; op < schedule.opcode.length; op++) {
+                int opcode = schedule.opcode[op], latency = schedule.latency[op], slot = op % width;
+                if (opcode == DecodedSchedule.NOP)
+                    continue;
+                if (latency < 1)
+                    throw new IllegalArgumentException(String.format("operation %d takes no time", op));
+                if (latency == 1)
+                    continue;
+                if (!writesRegister(opcode))
+                    throw new IllegalArgumentException(String.format("operation %d takes %d cycles for a result that "
+                            + "is not a register", op, latency));
+                if (delay[slot] != 0 && delay[slot] != latency)
+                    throw new IllegalArgumentException(String.format("slot %d takes both %d and %d cycles",
+                            slot, delay[slot], latency));
+                delay[slot] = latency;
+                if (schedule.destination[op] < STATIC_REGISTERS)
+                    inArray[schedule.destination[op]] = true;
+            }
+            for (int b = 0; b < schedule.bundles; b++) {
+                int branchOps = 0;
+                for (int slot = 0; slot < width; slot++) {
+                    int op = b * width + slot;
+                    if (isBranch(schedule.opcode[op])) {
+                        branchOps++;
+                        if (schedule.immediate[op] < 0)
+                            throw new IllegalArgumentException(String.format("bundle %d branches to %d",
+                                    b, schedule.immediate[op]));
+                    }
+                }
+                if (branchOps > 1)
+                    throw new IllegalArgumentException(String.format("bundle %d has %d branches", b, branchOps));
+            }
+
+            cycle = allocate(2);
+            lc = allocate(2);
+            ec = allocate(2);
+            rrb = allocate(1);
+            branches = allocate(2);
+            lastWrite = allocate(2);
+            taken = allocate(1);
+            filling = allocate(1);
+            for (int r = 0; r < STATIC_REGISTERS; r++)
+                registerLocal[r] = inArray[r] ? -1 : allocate(2);
+            target = new int[width];
+            value = new int[width];
+            address = new int[width];
+            delayedTarget = new int[width][];
+            delayedValue = new int[width][];
+            for (int slot = 0; slot < width; slot++) {
+                target[slot] = allocate(1);
+                value[slot] = allocate(2);
+                address[slot] = allocate(1);
+                int line = Math.max(0, delay[slot] - 1);
+                delayedTarget[slot] = new int[line];
+                delayedValue[slot] = new int[line];
+                for (int k = 0; k < line; k++) {
+                    delayedTarget[slot][k] = allocate(1);
+                    delayedValue[slot][k] = allocate(2);
+                }
+            }
+            delayOrder = IntStream.range(0, width).filter(s -> delay[s] > 1).boxed()
+                    .sorted((s, t) -> delay[s] != delay[t] ? delay[t] - delay[s] : s - t)
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        byte[] generate() {
+            Code.Label[] bundleLabels = new Code.Label[schedule.bundles];
+            for (int b = 0; b < schedule.bundles; b++)
+                bundleLabels[b] = new Code.Label();
+            Code.Label exit = new Code.Label();
+
+            // Entry: the state into locals, everything else cleared
+            code.longConstant(pool, 0);
+            code.local(Code.LSTORE, cycle);
+            loadIo(IO_LC);
+            code.local(Code.LSTORE, lc);
+            loadIo(IO_EC);
+            code.local(Code.LSTORE, ec);
+            loadIo(IO_RRB);
+            code.op(Code.L2I);
+            code.local(Code.ISTORE, rrb);
+            for (int local : new int[]{branches, lastWrite})
+                clearLong(local);
+            for (int local : new int[]{taken, filling})
+                clearInt(local, 0);
+            for (int r = 0; r < STATIC_REGISTERS; r++) {
+                if (registerLocal[r] < 0)
+                    continue;
+                code.local(Code.ALOAD, REGISTERS);
+                code.intConstant(pool, r);
+                code.op(Code.LALOAD);
+                code.local(Code.LSTORE, registerLocal[r]);
+            }
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+                clearInt(target[slot], -1);
+                clearLong(value[slot]);
+                clearInt(address[slot], 0);
+                for (int k = 0; k < delayedTarget[slot].length; k++) {
+                    clearInt(delayedTarget[slot][k], -1);
+                    clearLong(delayedValue[slot][k]);
+                }
+            }
+
+            for (int b = 0; b < schedule.bundles; b++) {
+                code.place(bundleLabels[b]);
+                bundle(b, bundleLabels, exit);
+            }
+
+            // Exit: the results still in flight land, then the locals go back into the state
+            code.place(exit);
+            code.local(Code.LLOAD, cycle);
+            code.local(Code.LSTORE, lastWrite);
+            int longestLine = Arrays.stream(delay).max().orElse(0) - 1;
+            for (int k = 0; k < longestLine; k++) {
+                for (int slot : delayOrder) {
+                    if (k >= delayedTarget[slot].length)
+                        continue;
+                    Code.Label empty = new Code.Label();
+                    code.local(Code.ILOAD, delayedTarget[slot][k]);
+                    code.jump(Code.IFLT, empty);
+                    landDelayed(slot, k);
+                    code.local(Code.LLOAD, cycle);
+                    code.longConstant(pool, k + 1);
+                    code.op(Code.LADD);
+                    code.local(Code.LSTORE, lastWrite);
+                    code.place(empty);
+                }
+            }
+            for (int r = 0; r < STATIC_REGISTERS; r++) {
+                if (registerLocal[r] < 0)
+                    continue;
+                code.local(Code.ALOAD, REGISTERS);
+                code.intConstant(pool, r);
+                code.local(Code.LLOAD, registerLocal[r]);
+                code.op(Code.LASTORE);
+            }
+            storeIo(IO_LC, lc);
+            storeIo(IO_EC, ec);
+            code.local(Code.ALOAD, IO);
+            code.intConstant(pool, IO_RRB);
+            code.local(Code.ILOAD, rrb);
+            code.op(Code.I2L);
+            code.op(Code.LASTORE);
+            storeIo(IO_CYCLES, cycle);
+            storeIo(IO_BRANCHES, branches);
+            storeIo(IO_LAST_WRITE, lastWrite);
+            code.op(Code.RETURN);
+
+            return assemble(code.finish());
+        }
+
+        private void bundle(int b, Code.Label[] bundleLabels, Code.Label exit) {
+            int width = Microarchitecture.PIPELINE_WIDTH;
+            // if (cycle == maxCycles) throw runaway(cycle, b)
+            Code.Label running = new Code.Label();
+            code.local(Code.LLOAD, cycle);
+            code.local(Code.LLOAD, MAX_CYCLES);
+            code.op(Code.LCMP);
+            code.jump(Code.IFNE, running);
+            code.local(Code.LLOAD, cycle);
+            code.intConstant(pool, b);
+            code.invokeStatic(pool, "CompiledSchedule", "runaway", "(JI)Ljava/lang/IllegalStateException;");
+            code.op(Code.ATHROW);
+            code.place(running);
+            count(b);
+
+            int branch = -1;
+            for (int slot = 0; slot < width; slot++) {
+                int op = b * width + slot;
+                if (schedule.opcode[op] == DecodedSchedule.NOP)
+                    continue;
+                if (isBranch(schedule.opcode[op])) {
+                    branch = op;
+                    clearInt(taken, 0);
+                }
+                issue(b, slot, op);
+            }
+
+            // Results landing in the next cycle: the oldest first, so those issued earlier by slots that take longer
+            for (int slot : delayOrder) {
+                Code.Label empty = new Code.Label();
+                code.local(Code.ILOAD, delayedTarget[slot][0]);
+                code.jump(Code.IFLT, empty);
+                landDelayed(slot, 0);
+                code.place(empty);
+                int[] line = delayedTarget[slot];
+                for (int k = 0; k + 1 < line.length; k++) {
+                    code.local(Code.ILOAD, line[k + 1]);
+                    code.local(Code.ISTORE, line[k]);
+                    code.local(Code.LLOAD, delayedValue[slot][k + 1]);
+                    code.local(Code.LSTORE, delayedValue[slot][k]);
+                }
+                int op = b * width + slot;
+                if (schedule.opcode[op] != DecodedSchedule.NOP && schedule.latency[op] > 1) {
+                    code.local(Code.ILOAD, target[slot]);
+                    code.local(Code.ISTORE, line[line.length - 1]);
+                    code.local(Code.LLOAD, value[slot]);
+                    code.local(Code.LSTORE, delayedValue[slot][line.length - 1]);
+                } else {
+                    clearInt(line[line.length - 1], -1);
+                }
+            }
+            for (int slot = 0; slot < width; slot++) {
+                int op = b * width + slot;
+                if (schedule.opcode[op] != DecodedSchedule.NOP && schedule.latency[op] == 1)
+                    land(slot, op);
+            }
+
+            code.local(Code.LLOAD, cycle);
+            code.longConstant(pool, 1);
+            code.op(Code.LADD);
+            code.local(Code.LSTORE, cycle);
+            if (branch >= 0) {
+                long destination = schedule.immediate[branch];
+                code.local(Code.ILOAD, taken);
+                code.jump(Code.IFNE, destination >= schedule.bundles ? exit : bundleLabels[(int) destination]);
+            }
+            // The last bundle falls through to the exit
+        }
+
+        /**
+         * Executes an operation unless its predicate is false: a branch takes effect right away, any other
+         * operation leaves its result in the locals of its slot.
+         */
+        private void issue(int b, int slot, int op) {
+            int opcode = schedule.opcode[op];
+            Code.Label skip = new Code.Label();
+            boolean predicated = schedule.predicate[op] != DecodedSchedule.NO_PREDICATE;
+            if (predicated) {
+                Code.Label execute = new Code.Label();
+                code.local(Code.ALOAD, PREDICATES);
+                physical(schedule.predicate[op]);
+                code.op(Code.BALOAD);
+                code.jump(Code.IFNE, execute);
+                if (!isBranch(opcode))
+                    clearInt(target[slot], -1);
+                code.jump(Code.GOTO, skip);
+                code.place(execute);
+                count(schedule.bundles + op);
+            }
+
+            int destination = schedule.destination[op];
+            long immediate = schedule.immediate[op];
+            switch (opcode) {
+                case DecodedSchedule.ADD, DecodedSchedule.SUB, DecodedSchedule.MULU -> {
+                    read(schedule.operandA[op]);
+                    read(schedule.operandB[op]);
+                    code.op(opcode == DecodedSchedule.ADD ? Code.LADD :
+                            opcode == DecodedSchedule.SUB ? Code.LSUB : Code.LMUL);
+                }
+                case DecodedSchedule.ADDI -> {
+                    read(schedule.operandA[op]);
+                    code.longConstant(pool, immediate);
+                    code.op(Code.LADD);
+                }
+                case DecodedSchedule.MOV -> read(schedule.operandA[op]);
+                case DecodedSchedule.MOVI -> code.longConstant(pool, immediate);
+                case DecodedSchedule.LD -> {
+                    code.local(Code.ALOAD, MEMORY);
+                    checkedAddress(b, schedule.operandA[op], immediate);
+                    code.op(Code.LALOAD);
+                }
+                case DecodedSchedule.ST -> {
+                    checkedAddress(b, schedule.operandB[op], immediate);
+                    code.local(Code.ISTORE, address[slot]);
+                    read(schedule.operandA[op]);
+                }
+                case DecodedSchedule.LOOP -> {
+                    // if (lc > 0) { lc--; taken }
+                    code.local(Code.LLOAD, lc);
+                    code.longConstant(pool, 0);
+                    code.op(Code.LCMP);
+                    code.jump(Code.IFLE, skip);
+                    decrement(lc);
+                    takeBranch();
+                }
+                case DecodedSchedule.LOOP_PIP -> {
+                    // if (lc > 0) { lc--; filling } else if (ec > 0) { ec--; draining } else fall through, then
+                    // rotate and set the new p32
+                    Code.Label draining = new Code.Label(), rotate = new Code.Label();
+                    code.local(Code.LLOAD, lc);
+                    code.longConstant(pool, 0);
+                    code.op(Code.LCMP);
+                    code.jump(Code.IFLE, draining);
+                    decrement(lc);
+                    clearInt(filling, 1);
+                    code.jump(Code.GOTO, rotate);
+                    code.place(draining);
+                    code.local(Code.LLOAD, ec);
+                    code.longConstant(pool, 0);
+                    code.op(Code.LCMP);
+                    code.jump(Code.IFLE, skip);
+                    decrement(ec);
+                    clearInt(filling, 0);
+                    code.place(rotate);
+                    code.iinc(rrb, 1);
+                    code.local(Code.ALOAD, PREDICATES);
+                    physical(Simulator.ROTATING_START);
+                    code.local(Code.ILOAD, filling);
+                    code.op(Code.BASTORE);
+                    takeBranch();
+                }
+                case DecodedSchedule.MOVP, DecodedSchedule.MOV_LC, DecodedSchedule.MOV_EC -> {
+                }
+                default -> throw new IllegalArgumentException(String.format("unknown opcode %d", opcode));
+            }
+            if (writesRegister(opcode) || opcode == DecodedSchedule.ST)
+                code.local(Code.LSTORE, value[slot]);
+
+            // The target, where it depends on the rotation or the operation may not execute
+            boolean delayed = schedule.latency[op] > 1;
+            if ((writesRegister(opcode) || opcode == DecodedSchedule.MOVP) && destination >= STATIC_REGISTERS) {
+                physical(destination);
+                code.local(Code.ISTORE, target[slot]);
+            } else if (writesRegister(opcode) && (predicated || delayed)) {
+                code.intConstant(pool, destination);
+                code.local(Code.ISTORE, target[slot]);
+            } else if (predicated && !isBranch(opcode)) {
+                clearInt(target[slot], 0);
+            }
+            code.place(skip);
+        }
+
+        /**
+         * Lands the result of an operation taking a cycle.
+         */
+        private void land(int slot, int op) {
+            int opcode = schedule.opcode[op];
+            if (isBranch(opcode))
+                return;
+            Code.Label skip = new Code.Label();
+            if (schedule.predicate[op] != DecodedSchedule.NO_PREDICATE) {
+                code.local(Code.ILOAD, target[slot]);
+                code.jump(Code.IFLT, skip);
+            }
+            int destination = schedule.destination[op];
+            switch (opcode) {
+                case DecodedSchedule.ST -> {
+                    code.local(Code.ALOAD, MEMORY);
+                    code.local(Code.ILOAD, address[slot]);
+                    code.local(Code.LLOAD, value[slot]);
+                    code.op(Code.LASTORE);
+                }
+                case DecodedSchedule.MOVP -> {
+                    code.local(Code.ALOAD, PREDICATES);
+                    if (destination >= STATIC_REGISTERS)
+                        code.local(Code.ILOAD, target[slot]);
+                    else
+                        code.intConstant(pool, destination);
+                    code.intConstant(pool, (int) schedule.immediate[op]);
+                    code.op(Code.BASTORE);
+                }
+                case DecodedSchedule.MOV_LC, DecodedSchedule.MOV_EC -> {
+                    code.longConstant(pool, schedule.immediate[op]);
+                    code.local(Code.LSTORE, opcode == DecodedSchedule.MOV_LC ? lc : ec);
+                }
+                default -> {
+                    if (destination < STATIC_REGISTERS && registerLocal[destination] >= 0) {
+                        code.local(Code.LLOAD, value[slot]);
+                        code.local(Code.LSTORE, registerLocal[destination]);
+                    } else {
+                        code.local(Code.ALOAD, REGISTERS);
+                        if (destination >= STATIC_REGISTERS)
+                            code.local(Code.ILOAD, target[slot]);
+                        else
+                            code.intConstant(pool, destination);
+                        code.local(Code.LLOAD, value[slot]);
+                        code.op(Code.LASTORE);
+                    }
+                }
+            }
+            code.place(skip);
+        }
+
+        private void landDelayed(int slot, int k) {
+            code.local(Code.ALOAD, REGISTERS);
+            code.local(Code.ILOAD, delayedTarget[slot][k]);
+            code.local(Code.LLOAD, delayedValue[slot][k]);
+            code.op(Code.LASTORE);
+        }
+
+        /**
+         * Pushes the value of a register by name.
+         */
+        private void read(int name) {
+            if (name < STATIC_REGISTERS && registerLocal[name] >= 0) {
+                code.local(Code.LLOAD, registerLocal[name]);
+                return;
+            }
+            code.local(Code.ALOAD, REGISTERS);
+            if (name < STATIC_REGISTERS)
+                code.intConstant(pool, name);
+            else
+                physical(name);
+            code.op(Code.LALOAD);
+        }
+
+        /**
+         * Pushes the physical number of a rotating register or predicate, or of a static one, which is its name.
+         */
+        private void physical(int name) {
+            if (name < STATIC_REGISTERS) {
+                code.intConstant(pool, name);
+                return;
+            }
+            // ROTATING_START + floorMod(name - ROTATING_START - rrb, ROTATING), with ROTATING a power of two
+            code.intConstant(pool, name - Simulator.ROTATING_START);
+            code.local(Code.ILOAD, rrb);
+            code.op(Code.ISUB);
+            code.intConstant(pool, Simulator.ROTATING - 1);
+            code.op(Code.IAND);
+            code.intConstant(pool, Simulator.ROTATING_START);
+            code.op(Code.IADD);
+        }
+
+        private void checkedAddress(int b, int base, long offset) {
+            read(base);
+            code.longConstant(pool, offset);
+            code.op(Code.LADD);
+            code.local(Code.ALOAD, MEMORY);
+            code.local(Code.LLOAD, cycle);
+            code.intConstant(pool, b);
+            code.invokeStatic(pool, "CompiledSchedule", "address", "(J[JJI)I");
+        }
+
+        private void takeBranch() {
+            clearInt(taken, 1);
+            code.local(Code.LLOAD, branches);
+            code.longConstant(pool, 1);
+            code.op(Code.LADD);
+            code.local(Code.LSTORE, branches);
+        }
+
+        private void decrement(int local) {
+            code.local(Code.LLOAD, local);
+            code.longConstant(pool, 1);
+            code.op(Code.LSUB);
+            code.local(Code.LSTORE, local);
+        }
+
+        // Counts go straight to the array: a local each would leave C2 hundreds of them to allocate
+        private void count(int index) {
+            code.local(Code.ALOAD, COUNTS);
+            code.intConstant(pool, index);
+            code.op(Code.DUP2);
+            code.op(Code.LALOAD);
+            code.longConstant(pool, 1);
+            code.op(Code.LADD);
+            code.op(Code.LASTORE);
+        }
+
+        private void loadIo(int index) {
+            code.local(Code.ALOAD, IO);
+            code.intConstant(pool, index);
+            code.op(Code.LALOAD);
+        }
+
+        private void storeIo(int index, int local) {
+            code.local(Code.ALOAD, IO);
+            code.intConstant(pool, index);
+            code.local(Code.LLOAD, local);
+            code.op(Code.LASTORE);
+        }
+
+        private void clearInt(int local, int value) {
+            code.intConstant(pool, value);
+            code.local(Code.ISTORE, local);
+        }
+
+        private void clearLong(int local) {
+            code.longConstant(pool, 0);
+            code.local(Code.LSTORE, local);
+        }
+
+        private int allocate(int size) {
+            int local = locals;
+            locals += size;
+            return local;
+        }
+
+        private byte[] assemble(byte[] run) {
+            int thisClass = pool.classRef(CLASS);
+            int superClass = pool.classRef("java/lang/Object");
+            int kernelInterface = pool.classRef("CompiledSchedule$Kernel");
+            int init = pool.utf8("<init>"), voidDescriptor = pool.utf8("()V");
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int runName = pool.utf8("run"), runDescriptor = pool.utf8("([J[Z[J[J[JJ)V");
+            int codeName = pool.utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);
+                out.writeShort(Code.CLASS_FILE_VERSION);
+                pool.write(out);
+                out.writeShort(0x0010 | 0x0020);  // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(kernelInterface);
+                out.writeShort(0);
+                out.writeShort(2);
+
+                // public <init>() { super(); }
+                byte[] constructor = {(byte) Code.ALOAD_0, (byte) Code.INVOKESPECIAL, (byte) (objectInit >> 8),
+                        (byte) objectInit, (byte) Code.RETURN};
+                writeMethod(out, init, voidDescriptor, codeName, 1, 1, constructor);
+                writeMethod(out, runName, runDescriptor, codeName, Code.MAX_STACK, locals, run);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, int maxStack,
+                                        int maxLocals, byte[] code) throws IOException {
+            out.writeShort(0x0001);  // public
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        private static boolean writesRegister(int opcode) {
+            return opcode == DecodedSchedule.ADD || opcode == DecodedSchedule.SUB || opcode == DecodedSchedule.MULU ||
+                    opcode == DecodedSchedule.ADDI || opcode == DecodedSchedule.LD || opcode == DecodedSchedule.MOV ||
+                    opcode == DecodedSchedule.MOVI;
+        }
+
+        private static boolean isBranch(int opcode) {
+            return opcode == DecodedSchedule.LOOP || opcode == DecodedSchedule.LOOP_PIP;
+        }
+    }
+
+    /**
+     * The constant pool of the generated class, every constant added once.
+     */
+    private static class ConstantPool {
+        private static final int UTF8 = 1, INTEGER = 3, LONG = 5, CLASS = 7, METHOD_REF = 10, NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return add("utf8 " + value, 1, out -> {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            });
+        }
+
+        int integer(int value) {
+            return add("int " + value, 1, out -> {
+                out.writeByte(INTEGER);
+                out.writeInt(value);
+            });
+        }
+
+        int longValue(long value) {
+            // A long takes two entries
+            return add("long " + value, 2, out -> {
+                out.writeByte(LONG);
+                out.writeLong(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return add("class " + name, 1, out -> {
+                out.writeByte(CLASS);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner), nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+            int nameAndType = add("nameAndType " + name + " " + descriptor, 1, out -> {
+                out.writeByte(NAME_AND_TYPE);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return add("method " + owner + "." + name + descriptor, 1, out -> {
+                out.writeByte(METHOD_REF);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        void write(DataOutputStream to) throws IOException {
+            out.flush();
+            to.writeShort(count);
+            bytes.writeTo(to);
+        }
+
+        private interface Entry {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int add(String key, int size, Entry entry) {
+            Integer index = indices.get(key);
+            if (index != null)
+                return index;
+            if (count + size > 0xffff)
+                throw new IllegalArgumentException("too many constants to compile the schedule");
+            try {
+                entry.write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            indices.put(key, count);
+            count += size;
+            return count - size;
+        }
+    }
+
+    /**
+     * The bytecode of a method, with forward and backward jumps to labels.
+     */
+    private static class Code {
+        // Before stack map frames, so the verifier infers them
+        static final int CLASS_FILE_VERSION = 49;
+        static final int MAX_STACK = 16;
+
+        static final int ICONST_0 = 0x03, LCONST_0 = 0x09, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14,
+                ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ALOAD_0 = 0x2a, LALOAD = 0x2f, BALOAD = 0x33,
+                ISTORE = 0x36, LSTORE = 0x37, LASTORE = 0x50, BASTORE = 0x54, DUP2 = 0x5c, IADD = 0x60, LADD = 0x61,
+                ISUB = 0x64, LSUB = 0x65, LMUL = 0x69, IAND = 0x7e, IINC = 0x84, I2L = 0x85, L2I = 0x88,
+                LCMP = 0x94, IFNE = 0x9a, IFLT = 0x9b, IFLE = 0x9e, GOTO = 0xa7, RETURN = 0xb1,
+                INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, ATHROW = 0xbf, WIDE = 0xc4;
+
+        static class Label {
+            int position = -1;
+            // Per jump to it, where the jump instruction starts
+            final List<Integer> jumps = new ArrayList<>();
+        }
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                bytes.write(WIDE);
+                bytes.write(opcode);
+                u2(index);
+            } else {
+                bytes.write(opcode);
+                bytes.write(index);
+            }
+        }
+
+        void iinc(int index, int increment) {
+            if (index > 0xff) {
+                bytes.write(WIDE);
+                bytes.write(IINC);
+                u2(index);
+                u2(increment);
+            } else {
+                bytes.write(IINC);
+                bytes.write(index);
+                bytes.write(increment);
+            }
+        }
+
+        void intConstant(ConstantPool pool, int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                u2(value);
+            } else {
+                bytes.write(LDC_W);
+                u2(pool.integer(value));
+            }
+        }
+
+        void longConstant(ConstantPool pool, long value) {
+            if (value == 0 || value == 1) {
+                bytes.write(LCONST_0 + (int) value);
+            } else {
+                bytes.write(LDC2_W);
+                u2(pool.longValue(value));
+            }
+        }
+
+        void invokeStatic(ConstantPool pool, String owner, String name, String descriptor) {
+            bytes.write(INVOKESTATIC);
+            u2(pool.methodRef(owner, name, descriptor));
+        }
+
+        void jump(int opcode, Label label) {
+            if (!labels.contains(label))
+                labels.add(label);
+            label.jumps.add(bytes.size());
+            bytes.write(opcode);
+            u2(0);
+        }
+
+        void place(Label label) {
+            label.position = bytes.size();
+        }
+
+        /**
+         * @return the bytecode with every jump resolved
+         * @throws IllegalArgumentException if the method or a jump in it is too long for the class file
+         */
+        byte[] finish() {
+            byte[] code = bytes.toByteArray();
+            if (code.length > 0xffff)
+                throw new IllegalArgumentException("the schedule is too large to compile");
+            for (Label label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new IllegalArgumentException("the schedule is too large to compile");
+                    code[jump + 1] = (byte) (offset >> 8);
+                    code[jump + 2] = (byte) offset;
+                }
+            }
+            return code;
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import Instructions.*;
+import Microarchitecture.Microarchitecture;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A finished schedule reduced to what executing it needs: per slot of every bundle, an opcode, the registers it
+ * names as printed, its immediate and its predicate. Operation i is slot i % PIPELINE_WIDTH of bundle
+ * i / PIPELINE_WIDTH, and empty slots are NOPs.
+ *
+ * A schedule is decoded either from the Schedule that built it or from the loop.json or looppip.json it was dumped
+ * to, and both give the same result.
+ */
+class DecodedSchedule {
+    static final int NOP = 0, ADD = 1, SUB = 2, MULU = 3, ADDI = 4, LD = 5, ST = 6, MOV = 7, MOVI = 8, MOVP = 9,
+            MOV_LC = 10, MOV_EC = 11, LOOP = 12, LOOP_PIP = 13;
+    static final int NO_PREDICATE = -1;
+
+    final int bundles;
+    // Per operation: destination, operand A and operand B registers as printed; a store's value is operand A and its
+    // base operand B. A branch's target and a memory offset are immediates.
+    final int[] opcode, destination, operandA, operandB, predicate, latency;
+    final long[] immediate;
+
+    private DecodedSchedule(int bundles) {
+        this.bundles = bundles;
+        int operations = bundles * Microarchitecture.PIPELINE_WIDTH;
+        opcode = new int[operations];
+        destination = new int[operations];
+        operandA = new int[operations];
+        operandB = new int[operations];
+        predicate = new int[operations];
+        latency = new int[operations];
+        immediate = new long[operations];
+    }
+
+    static DecodedSchedule of(Schedule schedule) {
+        List<Bundle> bundles = schedule.get();
+        DecodedSchedule decoded = new DecodedSchedule(bundles.size());
+        for (int b = 0; b < bundles.size(); b++)
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++)
+                decoded.decode(b * Microarchitecture.PIPELINE_WIDTH + slot, bundles.get(b).get(slot));
+        return decoded;
+    }
+
+    /**
+     * Decodes a dumped schedule, a JSON array of bundles that are each an array of one instruction per slot.
+     */
+    static DecodedSchedule read(Path path) throws IOException {
+        String[][] bundles;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            bundles = new Gson().fromJson(reader, String[][].class);
+        } catch (JsonParseException e) {
+            throw new IOException(String.format("%s: %s", path, e.getMessage()));
+        }
+        if (bundles == null)
+            throw new IOException(String.format("%s: empty input", path));
+
+        DecodedSchedule decoded = new DecodedSchedule(bundles.length);
+        for (int b = 0; b < bundles.length; b++) {
+            if (bundles[b].length != Microarchitecture.PIPELINE_WIDTH)
+                throw new IOException(String.format("%s: bundle %d has %d slots, expected %d",
+                        path, b, bundles[b].length, Microarchitecture.PIPELINE_WIDTH));
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+                String text = bundles[b][slot].trim();
+                int predicate = NO_PREDICATE;
+                // A predicated instruction prints as (pN) followed by the instruction
+                if (text.startsWith("(p")) {
+                    int end = text.indexOf(')');
+                    if (end < 0)
+                        throw new IOException(String.format("%s: bundle %d slot %d: malformed predicate in '%s'",
+                                path, b, slot, text));
+                    try {
+                        predicate = Integer.parseInt(text, 2, end, 10);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(String.format("%s: bundle %d slot %d: malformed predicate in '%s'",
+                                path, b, slot, text));
+                    }
+                    text = text.substring(end + 1);
+                }
+                String source = String.format("%s: bundle %d slot %d", path, b, slot);
+                int operation = b * Microarchitecture.PIPELINE_WIDTH + slot;
+                decoded.decode(operation, ProgramParser.parse(List.of(text), source).get(0));
+                if (predicate != NO_PREDICATE)
+                    decoded.predicate[operation] = predicate;
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * @return the largest latency of any operation, at least 1
+     */
+    int maximumLatency() {
+        int maximum = 1;
+        for (int l : latency)
+            maximum = Math.max(maximum, l);
+        return maximum;
+    }
+
+    private void decode(int operation, Instruction i) {
+        int op;
+        latency[operation] = i.getLatency();
+        predicate[operation] = i instanceof Predicateable && ((Predicateable) i).getPredicate() != null ?
+                ((Predicateable) i).getPredicate() : NO_PREDICATE;
+        if (i instanceof Add || i instanceof Sub || i instanceof Mulu) {
+            op = i instanceof Add ? ADD : i instanceof Sub ? SUB : MULU;
+            destination[operation] = ((Producer) i).getMappedDestination();
+            operandA[operation] = ((Producer) i).getMappedOperandA();
+            operandB[operation] = ((DoubleConsumer) i).getMappedOperandB();
+        } else if (i instanceof Addi) {
+            op = ADDI;
+            destination[operation] = ((Addi) i).getMappedDestination();
+            operandA[operation] = ((Addi) i).getMappedOperandA();
+            immediate[operation] = parseImmediate(((Immediate) i).getImmediate());
+        } else if (i instanceof Movi) {
+            op = MOVI;
+            destination[operation] = ((Movi) i).getMappedDestination();
+            immediate[operation] = parseImmediate(((Immediate) i).getImmediate());
+        } else if (i instanceof Ld) {
+            op = LD;
+            destination[operation] = ((Ld) i).getMappedDestination();
+            operandA[operation] = ((Ld) i).getMappedOperandA();
+            immediate[operation] = ((Ld) i).getOffset();
+        } else if (i instanceof St) {
+            op = ST;
+            operandA[operation] = ((St) i).getMappedOperandA();
+            operandB[operation] = ((St) i).getMappedOperandB();
+            immediate[operation] = ((St) i).getOffset();
+        } else if (i instanceof Mov) {
+            op = MOV;
+            destination[operation] = ((Mov) i).getMappedDestination();
+            operandA[operation] = ((Mov) i).getMappedOperandA();
+        } else if (i instanceof MovP) {
+            String value = ((MovP) i).getImmediate();
+            if (!value.equals("true") && !value.equals("false"))
+                throw new IllegalArgumentException(String.format("'%s' sets a predicate to neither true nor false", i));
+            op = MOVP;
+            destination[operation] = ((MovP) i).getDestination();
+            immediate[operation] = value.equals("true") ? 1 : 0;
+        } else if (i instanceof MovLoop) {
+            op = ((MovLoop) i).getDestination().equals("LC") ? MOV_LC : MOV_EC;
+            immediate[operation] = ((MovLoop) i).getImmediate();
+        } else if (i instanceof LoopPip) {
+            op = LOOP_PIP;
+            immediate[operation] = ((LoopPip) i).getTarget();
+        } else if (i instanceof Loop) {
+            op = LOOP;
+            immediate[operation] = ((Loop) i).getTarget();
+        } else if (i instanceof Nop) {
+            op = NOP;
+        } else {
+            throw new IllegalArgumentException(String.format("'%s' cannot be executed", i));
+        }
+        opcode[operation] = op;
+    }
+
+    /**
+     * Parses an immediate as the addi and mov instructions print it: decimal or 0x prefixed hexadecimal, either
+     * with an optional sign.
+     */
+    private static long parseImmediate(String text) {
+        int start = 0;
+        boolean negative = false;
+        if (text.startsWith("-") || text.startsWith("+")) {
+            negative = text.charAt(0) == '-';
+            start = 1;
+        }
+        if (text.regionMatches(true, start, "0x", 0, 2)) {
+            long value = Long.parseLong(text, start + 2, text.length(), 16);
+            return negative ? -value : value;
+        }
+        long value = Long.parseLong(text, start, text.length(), 10);
+        return negative ? -value : value;
+    }
+}
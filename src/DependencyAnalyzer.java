@@ -1,152 +1,302 @@
 import Instructions.Consumer;
+import Instructions.DoubleConsumer;
 import Instructions.Instruction;
 import Instructions.Producer;
+import Microarchitecture.Microarchitecture;
+import Tracing.Trace;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.BiConsumer;
-import java.util.function.BiPredicate;
-import java.util.stream.Collectors;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
+/**
+ * Classifies the dependencies of every consumer in a few linear sweeps over the program. The first sweeps sort
+ * the addresses of all producers by destination register into a writer table. With the table in place every
+ * consumer's dependencies are ranges of writers of its operands: the local ones lie between the start of its
+ * basic block and the consumer, the interloop, loop invariant and post-loop ones are answered per register from
+ * the writers in BB0 and BB1.
+ *
+ * The program can be split into chunks that are swept independently on the fork/join pool. Every chunk only
+ * writes the table positions and edges of its own instructions, so the result does not depend on
+ * how the chunks were run.
+ */
 public class DependencyAnalyzer {
-    private static ArrayList<Instruction> program;
-    private static ArrayList<Producer> bb0, bb1, bb2;
-    private static int initLoopStart, initLoopEnd;
-
-    public static ArrayList<InstructionDependency> analyze(
-            ArrayList<Instruction> instructions, int lStart, int lEnd,
-            ArrayList<Producer> basicBlockZeroProducers,
-            ArrayList<Producer> basicBlockOneProducers,
-            ArrayList<Producer> basicBlockTwoProducers) {
+    // Stands in for an operand that should not contribute any writers
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final int CHUNK_SIZE = 4096;
+
+    private final ArrayList<Instruction> program;
+    private final int initLoopStart, initLoopEnd;
+    private final boolean parallel;
+    private final int chunkSize, chunks;
+    private final int registerBase, registerCount;
+
+    // Producer addresses grouped by destination register, each group in program order
+    private int[] writers;
+    // Per register: where its group starts, and its first writer at or after the loop start and loop end
+    private int[] registerStart, atLoopStart, atLoopEnd;
+
+    private DependencyAnalyzer(ArrayList<Instruction> instructions, int lStart, int lEnd, boolean parallel) {
         program = instructions;
         initLoopStart = lStart;
         initLoopEnd = lEnd;
-        bb0 = basicBlockZeroProducers;
-        bb1 = basicBlockOneProducers;
-        bb2 = basicBlockTwoProducers;
-
-        ArrayList<InstructionDependency> dependencyMatrix = new ArrayList<>();
+        this.parallel = parallel;
+        chunkSize = parallel ? CHUNK_SIZE : Math.max(1, program.size());
+        chunks = Math.max(1, (program.size() + chunkSize - 1) / chunkSize);
 
+        // Inputs are not bounded to the register file, so the table covers whatever registers the program names
+        int min = 0, max = Microarchitecture.REGISTERS - 1;
         for (Instruction i : program) {
-            InstructionDependency dependency = new InstructionDependency(i.getAddress());
-            if (i instanceof Producer)
-                dependency.setDestination(((Producer) i).getDestination());
-            dependencyMatrix.add(dependency);
+            if (i instanceof Producer) {
+                min = Math.min(min, ((Producer) i).getDestination());
+                max = Math.max(max, ((Producer) i).getDestination());
+            }
+            if (i.isTrueConsumer()) {
+                min = Math.min(min, Math.min(operandA(i), operandB(i)));
+                max = Math.max(max, Math.max(operandA(i), operandB(i)));
+            }
         }
+        registerBase = min;
+        registerCount = max - min + 1;
+    }
+
+    public static DependencyGraph analyze(ArrayList<Instruction> instructions, int lStart, int lEnd) {
+        return analyze(instructions, lStart, lEnd, false);
+    }
+
+    /**
+     * Analyzes the program, splitting the work over the common fork/join pool if parallel is set. Both modes give
+     * the same result.
+     */
+    public static DependencyGraph analyze(ArrayList<Instruction> instructions, int lStart, int lEnd,
+                                          boolean parallel) {
+        if (lStart > lEnd)
+            throw new IllegalArgumentException(String.format(
+                    "loop branch at %d jumps forward to %d", lEnd - 1, lStart));
+        return new DependencyAnalyzer(instructions, lStart, lEnd, parallel).analyze();
+    }
 
-        program.stream().filter(Instruction::isTrueConsumer).forEach(instruction -> {
-            Consumer consumer = (Consumer) instruction;
-            identifyLocalDependencies(consumer).forEach(d ->
-                    dependencyMatrix.get(consumer.getAddress()).addLocalDependency(d));
-            identifyInterloopDependencies(consumer).forEach(d ->
-                    dependencyMatrix.get(consumer.getAddress()).addInterloopDependency(d));
-            identifyLoopInvariantDependencies(consumer).forEach(d ->
-                    dependencyMatrix.get(consumer.getAddress()).addLoopInvariantDependency(d));
-            identifyPostLoopDependencies(consumer).forEach(d ->
-                    dependencyMatrix.get(consumer.getAddress()).addPostLoopDependency(d));
+    private DependencyGraph analyze() {
+        buildWriterTable();
+
+        Edges[] edges = new Edges[chunks];
+        int[] destinations = new int[program.size()];
+        forEachChunk(chunk -> edges[chunk] = classifyChunk(chunk, destinations));
+
+        // Chunks were classified independently, so their edges only need to be shifted into place
+        int[] offsets = new int[chunks + 1];
+        for (int chunk = 0; chunk < chunks; chunk++)
+            offsets[chunk + 1] = offsets[chunk] + edges[chunk].count;
+        int[] kindStart = new int[program.size() * DependencyGraph.KINDS + 1];
+        int[] producers = new int[offsets[chunks]];
+        byte[] latencies = new byte[offsets[chunks]];
+        forEachChunk(chunk -> {
+            Edges e = edges[chunk];
+            int first = chunk * chunkSize * DependencyGraph.KINDS;
+            for (int k = 0; k < e.marks; k++)
+                kindStart[first + k] = e.kindStart[k] + offsets[chunk];
+            System.arraycopy(e.producers, 0, producers, offsets[chunk], e.count);
+            for (int i = offsets[chunk]; i < offsets[chunk + 1]; i++)
+                latencies[i] = (byte) program.get(producers[i]).getLatency();
         });
+        kindStart[program.size() * DependencyGraph.KINDS] = offsets[chunks];
 
-//        System.out.printf("     %-30s   %-30s   %-30s   %-30s\n",
-//                "Local dependencies", "Interloop dependencies", "Loop invariant", "Post loop dependencies");
-//        for (InstructionDependency d : dependencyMatrix)
-//            System.out.printf("%s\n", d);
-//        System.out.println();
-        return dependencyMatrix;
+        DependencyGraph graph = new DependencyGraph(kindStart, producers, latencies, destinations);
+        if (Trace.ENABLED)
+            trace(graph);
+        return graph;
     }
 
-    private static ArrayList<Producer> identifyLocalDependencies(Consumer consumer) {
-        ArrayList<Producer> deps = new ArrayList<>();
-        int start = getBasicBlockOfInstructionStart(consumer);
-        int end = getBasicBlockOfInstructionEnd(consumer);
+    private static final String[] KIND_NAMES = {"local", "interloop", "loop invariant", "post loop"};
 
-        BiConsumer<List<Producer>, List<Producer>> addDependencies = (p, d) -> p.stream()
-                .filter(i ->
-                        i.getAddress() < consumer.getAddress() &&
-                                i.getAddress() >= start &&
-                                i.getAddress() < end)
-                .filter(consumer::isDependentOn)
-                .forEach(d::add);
+    private static void trace(DependencyGraph graph) {
+        for (int c = 0; c < graph.size(); c++)
+            for (int kind = 0; kind < DependencyGraph.KINDS; kind++)
+                for (int e = graph.start(c, kind); e < graph.end(c, kind); e++)
+                    Trace.dependency(c, graph.producer(e), KIND_NAMES[kind], graph.latency(e));
+    }
+
+    /**
+     * Sorts the producers by destination register: every chunk counts its writers per register, the counts are
+     * turned into positions, and every chunk then places its writers at its own positions.
+     */
+    private void buildWriterTable() {
+        int[][] positions = new int[chunks][registerCount];
+        forEachChunk(chunk -> {
+            for (Instruction i : chunk(chunk))
+                if (i instanceof Producer)
+                    positions[chunk][((Producer) i).getDestination() - registerBase]++;
+        });
+
+        registerStart = new int[registerCount + 1];
+        int total = 0;
+        for (int r = 0; r < registerCount; r++) {
+            registerStart[r] = total;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int count = positions[chunk][r];
+                positions[chunk][r] = total;
+                total += count;
+            }
+        }
+        registerStart[registerCount] = total;
+
+        writers = new int[total];
+        forEachChunk(chunk -> {
+            for (Instruction i : chunk(chunk))
+                if (i instanceof Producer)
+                    writers[positions[chunk][((Producer) i).getDestination() - registerBase]++] = i.getAddress();
+        });
 
-        // Only one of these calls will add instructions as dependencies
-        addDependencies.accept(bb0, deps);
-        addDependencies.accept(bb1, deps);
-        addDependencies.accept(bb2, deps);
-        return deps;
+        atLoopStart = new int[registerCount];
+        atLoopEnd = new int[registerCount];
+        for (int r = 0; r < registerCount; r++) {
+            atLoopStart[r] = firstAtOrAfter(r, initLoopStart);
+            atLoopEnd[r] = firstAtOrAfter(r, initLoopEnd);
+        }
     }
 
-    private static ArrayList<Producer> identifyInterloopDependencies(Consumer consumer) {
-        ArrayList<Producer> deps = new ArrayList<>();
+    /**
+     * Collects the edges of one chunk. Consumers are visited in program order, so for every register the position
+     * of its first writer at or after the consumer only moves forward.
+     */
+    private Edges classifyChunk(int chunk, int[] destinations) {
+        int[] cursor = new int[registerCount];
+        Arrays.fill(cursor, -1);
+        List<Instruction> instructions = chunk(chunk);
+        Edges edges = new Edges(instructions.size());
 
-        // Consumer must be in loop body
-        if (consumer.getAddress() < initLoopStart || consumer.getAddress() >= initLoopEnd)
-            return deps;
+        for (Instruction i : instructions) {
+            if (i instanceof Producer)
+                destinations[i.getAddress()] = ((Producer) i).getDestination();
+            if (!i.isTrueConsumer()) {
+                for (int kind = 0; kind < DependencyGraph.KINDS; kind++)
+                    edges.mark();
+                continue;
+            }
 
-        bb0.stream()
-                .filter(consumer::isDependentOn)
-                .forEach(deps::add);
+            int a = operandA(i) - registerBase, b = operandB(i) - registerBase;
+            int fromA = advance(cursor, a, i.getAddress()), fromB = advance(cursor, b, i.getAddress());
+            boolean inLoop = i.getAddress() >= initLoopStart && i.getAddress() < initLoopEnd;
 
-        bb1.stream()
-                .filter(consumer::isDependentOn)
-                .filter(i -> i.getAddress() >= consumer.getAddress())
-                .forEach(deps::add);
+            edges.mark();
+            identifyLocalDependencies(i, a, fromA, b, fromB, edges);
+            edges.mark();
+            if (inLoop)
+                identifyInterloopDependencies(a, fromA, b, fromB, edges);
+            edges.mark();
+            if (inLoop)
+                identifyLoopInvariantDependencies(a, b, edges);
+            edges.mark();
+            if (i.getAddress() >= initLoopEnd)
+                identifyPostLoopDependencies(a, b, edges);
+        }
+        return edges;
+    }
 
-        // Filter out loop invariant dependencies
-        BiPredicate<Instruction, Instruction> matchesCondition = (i, o) ->
-                i != o &&
-                        ((i.getAddress() < initLoopStart && o.getAddress() >= initLoopStart) ||
-                                (i.getAddress() >= initLoopStart && o.getAddress() < initLoopStart)) &&
-                        ((Producer)i).getDestination() == ((Producer)o).getDestination();
+    /**
+     * Every consumer depends on all earlier writers of its operands within its basic block.
+     */
+    private void identifyLocalDependencies(Instruction consumer, int a, int toA, int b, int toB, Edges edges) {
+        int[] blockStart = consumer.getAddress() < initLoopStart ? registerStart :
+                consumer.getAddress() < initLoopEnd ? atLoopStart : atLoopEnd;
+        addMerged(a, blockStart[a], toA, b, blockStart[b], toB, edges);
+    }
 
-        return deps.stream()
-                .filter(i -> deps.stream()
-                        .anyMatch(o -> matchesCondition.test(i, o)))
-                .collect(Collectors.toCollection(ArrayList::new));
+    /**
+     * A loop body consumer depends across iterations on a register that is written both in BB0 and in the loop
+     * at or after the consumer. All BB0 writers of such a register come first, then its loop writers.
+     */
+    private void identifyInterloopDependencies(int a, int fromA, int b, int fromB, Edges edges) {
+        boolean carriedA = atLoopStart[a] > registerStart[a] && fromA < atLoopEnd[a];
+        boolean carriedB = atLoopStart[b] > registerStart[b] && fromB < atLoopEnd[b];
+        addMerged(carriedA ? a : NONE, registerStart[a], atLoopStart[a],
+                carriedB ? b : NONE, registerStart[b], atLoopStart[b], edges);
+        addMerged(carriedA ? a : NONE, fromA, atLoopEnd[a],
+                carriedB ? b : NONE, fromB, atLoopEnd[b], edges);
     }
 
-    private static ArrayList<Producer> identifyLoopInvariantDependencies(Consumer consumer) {
-        ArrayList<Producer> deps = new ArrayList<>();
+    private void identifyLoopInvariantDependencies(int a, int b, Edges edges) {
+        boolean invariantA = atLoopStart[a] == atLoopEnd[a];
+        boolean invariantB = atLoopStart[b] == atLoopEnd[b];
+        addMerged(invariantA ? a : NONE, registerStart[a], atLoopStart[a],
+                invariantB ? b : NONE, registerStart[b], atLoopStart[b], edges);
+    }
 
-        // Consumer must be in loop body
-        if (consumer.getAddress() < initLoopStart || consumer.getAddress() >= initLoopEnd)
-            return deps;
+    private void identifyPostLoopDependencies(int a, int b, Edges edges) {
+        addMerged(a, atLoopStart[a], atLoopEnd[a], b, atLoopStart[b], atLoopEnd[b], edges);
+    }
 
-        bb0.stream()
-                .filter(consumer::isDependentOn)
-                .filter(i -> bb1.stream().allMatch(p -> i.getDestination() != p.getDestination()))
-                .forEach(deps::add);
+    /**
+     * Adds two ranges of the writer table to the edges in program order. A register of NONE contributes nothing,
+     * and a register given twice is only listed once.
+     */
+    private void addMerged(int a, int fromA, int toA, int b, int fromB, int toB, Edges edges) {
+        if (a == b || b == NONE)
+            fromB = toB;
+        if (a == NONE)
+            fromA = toA;
+        while (fromA < toA || fromB < toB) {
+            boolean takeA = fromB >= toB || (fromA < toA && writers[fromA] < writers[fromB]);
+            edges.add(takeA ? writers[fromA++] : writers[fromB++]);
+        }
+    }
 
-        return deps;
+    /**
+     * @return the position of the register's first writer at or after the address, moving its cursor up to it
+     */
+    private int advance(int[] cursor, int r, int address) {
+        if (cursor[r] == -1)
+            return cursor[r] = firstAtOrAfter(r, address);
+        while (cursor[r] < registerStart[r + 1] && writers[cursor[r]] < address)
+            cursor[r]++;
+        return cursor[r];
     }
 
-    private static ArrayList<Producer> identifyPostLoopDependencies(Consumer consumer) {
-        ArrayList<Producer> deps = new ArrayList<>();
+    private int firstAtOrAfter(int r, int address) {
+        int index = Arrays.binarySearch(writers, registerStart[r], registerStart[r + 1], address);
+        return index >= 0 ? index : -index - 1;
+    }
 
-        if (consumer.getAddress() < initLoopEnd)
-            return deps;
+    private void forEachChunk(IntConsumer action) {
+        IntStream chunkIndices = IntStream.range(0, chunks);
+        (parallel ? chunkIndices.parallel() : chunkIndices).forEach(action);
+    }
 
-        bb1.stream()
-                .filter(consumer::isDependentOn)
-                .forEach(deps::add);
+    private List<Instruction> chunk(int chunk) {
+        return program.subList(chunk * chunkSize, Math.min(program.size(), (chunk + 1) * chunkSize));
+    }
 
-        return deps;
+    private static int operandA(Instruction consumer) {
+        return ((Consumer) consumer).getOperandA();
     }
 
-    private static int getBasicBlockOfInstructionStart(Instruction instruction) {
-        int address = instruction.getAddress();
-        Integer[] candidates = { 0, initLoopStart, initLoopEnd};
-        Integer[] difference = { address, address - initLoopStart, address - initLoopEnd};
-        return candidates[Arrays.asList(difference).indexOf(Arrays.stream(difference)
-                .map(i -> i >= 0 ? i : Integer.MAX_VALUE)
-                .min(Integer::compare).get())];
+    // Single operand consumers report their only operand twice
+    private static int operandB(Instruction consumer) {
+        return consumer instanceof DoubleConsumer ? ((DoubleConsumer) consumer).getOperandB() : operandA(consumer);
     }
 
-    private static int getBasicBlockOfInstructionEnd(Instruction instruction) {
-        int address = instruction.getAddress();
-        Integer[] candidates = {initLoopStart, initLoopEnd, program.size() };
-        Integer[] difference = { initLoopStart - address, initLoopEnd - address, program.size() - address };
-        return candidates[Arrays.asList(difference).indexOf(Arrays.stream(difference)
-                .map(i -> i > 0 ? i : Integer.MAX_VALUE)
-                .min(Integer::compare).get())];
+    /**
+     * Edges of one chunk, with the start of every kind of every instruction relative to the chunk.
+     */
+    private static class Edges {
+        private final int[] kindStart;
+        private int[] producers = new int[64];
+        private int marks, count;
+
+        Edges(int instructions) {
+            kindStart = new int[instructions * DependencyGraph.KINDS];
+        }
+
+        void mark() {
+            kindStart[marks++] = count;
+        }
+
+        void add(int producer) {
+            if (count == producers.length)
+                producers = Arrays.copyOf(producers, count * 2);
+            producers[count++] = producer;
+        }
     }
 }
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Dependencies of every instruction, packed in compressed sparse row form. The edges of an instruction are the
+ * addresses of the producers it depends on, grouped by kind in the order local, interloop, loop invariant and
+ * post-loop, and within a kind in the order the analysis found them. Every edge also carries the latency of its
+ * producer.
+ *
+ * The graph only holds addresses, so it is shared by every fork of an analyzed program; a schedule looks the
+ * producers up in its own copy of the program. Edges are walked by index, which allocates nothing:
+ *
+ * for (int e = graph.start(c, DependencyGraph.LOCAL); e < graph.end(c, DependencyGraph.LOCAL); e++)
+ *     program.get(graph.producer(e))...
+ */
+public class DependencyGraph {
+    static final int LOCAL = 0;
+    static final int INTERLOOP = 1;
+    static final int LOOP_INVARIANT = 2;
+    static final int POST_LOOP = 3;
+    static final int KINDS = 4;
+
+    // Edges of kind k of instruction i are [kindStart[i * KINDS + k], kindStart[i * KINDS + k + 1])
+    private final int[] kindStart;
+    private final int[] producers;
+    private final byte[] latencies;
+    private final int[] destinations;
+
+    DependencyGraph(int[] kindStart, int[] producers, byte[] latencies, int[] destinations) {
+        this.kindStart = kindStart;
+        this.producers = producers;
+        this.latencies = latencies;
+        this.destinations = destinations;
+    }
+
+    int size() {
+        return destinations.length;
+    }
+
+    int edges() {
+        return producers.length;
+    }
+
+    int start(int instruction) {
+        return kindStart[instruction * KINDS];
+    }
+
+    int end(int instruction) {
+        return kindStart[(instruction + 1) * KINDS];
+    }
+
+    int start(int instruction, int kind) {
+        return kindStart[instruction * KINDS + kind];
+    }
+
+    int end(int instruction, int kind) {
+        return kindStart[instruction * KINDS + kind + 1];
+    }
+
+    boolean hasDependencies(int instruction) {
+        return start(instruction) != end(instruction);
+    }
+
+    int producer(int edge) {
+        return producers[edge];
+    }
+
+    int latency(int edge) {
+        return latencies[edge];
+    }
+
+    /**
+     * @return the register the instruction at the address writes as written in the program, 0 for non-producers
+     */
+    int destination(int instruction) {
+        return destinations[instruction];
+    }
+
+    /**
+     * @return whether any edge of the given kind leads to a producer of the register
+     */
+    boolean dependsOn(int instruction, int kind, int register) {
+        for (int e = start(instruction, kind); e < end(instruction, kind); e++)
+            if (destinations[producers[e]] == register)
+                return true;
+        return false;
+    }
+
+    public String toString(int instruction) {
+        IntFunction<String> formatDependencies = kind -> {
+            if (start(instruction, kind) == end(instruction, kind))
+                return "";
+            String[] deps = new String[end(instruction, kind) - start(instruction, kind)];
+            for (int e = start(instruction, kind); e < end(instruction, kind); e++)
+                deps[e - start(instruction, kind)] = String.format("(%d, x%d)", producers[e], destinations[producers[e]]);
+            return Arrays.toString(deps);
+        };
+        return String.format("%-2d | %30s | %30s | %30s | %30s", instruction,
+                formatDependencies.apply(LOCAL),
+                formatDependencies.apply(INTERLOOP),
+                formatDependencies.apply(LOOP_INVARIANT),
+                formatDependencies.apply(POST_LOOP));
+    }
+}
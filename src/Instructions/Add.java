@@ -1,5 +1,7 @@
 package Instructions;
 
+import Tracing.Trace;
+
 public class Add extends Arithmetic implements DoubleConsumer {
     private final int operandB;
     private int mappedOperandB;
@@ -7,6 +9,7 @@ public class Add extends Arithmetic implements DoubleConsumer {
     public Add(int address, int destination, int consumed, int operandB) {
         super(address, destination, consumed);
         this.operandB = operandB;
+        this.mappedOperandB = operandB;
         this.operandBRemapped = false;
     }
 
@@ -17,6 +20,8 @@ public class Add extends Arithmetic implements DoubleConsumer {
 
     @Override
     public void setOperandB(int operand) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "b", mappedOperandB, operand);
         this.mappedOperandB = operand;
         operandBRemapped = true;
     }
@@ -32,8 +37,19 @@ public class Add extends Arithmetic implements DoubleConsumer {
     }
 
     @Override
-    public String toString() {
-        return String.format("%s add x%d, x%d, x%d",
-                getPredicateString(), getMappedDestination(), getMappedOperandA(), getMappedOperandB());
+    public Add copy() {
+        return new Add(getAddress(), getDestination(), getOperandA(), operandB);
+    }
+
+    @Override
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" add x").append(getMappedDestination())
+                .append(", x").append(getMappedOperandA()).append(", x").append(getMappedOperandB());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Add.class, predicate,
+                getMappedDestination(), getMappedOperandA(), getMappedOperandB());
     }
 }
@@ -7,13 +7,24 @@ public class Addi extends Arithmetic implements Immediate {
         this.immediate = immediate;
     }
     @Override
-    public String toString() {
-        return String.format("%s addi x%d, x%d, %s",
-                getPredicateString(), getMappedDestination(), getMappedOperandA(), getImmediate());
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" addi x").append(getMappedDestination())
+                .append(", x").append(getMappedOperandA()).append(", ").append(getImmediate());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Addi.class, predicate,
+                getMappedDestination(), getMappedOperandA(), InstructionKey.NONE, getImmediate());
     }
 
     @Override
     public String getImmediate() {
         return immediate;
     }
+
+    @Override
+    public Addi copy() {
+        return new Addi(getAddress(), getDestination(), getOperandA(), immediate);
+    }
 }
@@ -1,5 +1,7 @@
 package Instructions;
 
+import Tracing.Trace;
+
 public abstract class Consumer extends Instruction {
     private final int consumed;
     private int mappedConsumed;
@@ -17,6 +19,8 @@ public abstract class Consumer extends Instruction {
         return mappedConsumed;
     }
     public void setOperandA(int operand) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "a", mappedConsumed, operand);
         mappedConsumed = operand;
         remapped = true;
     }
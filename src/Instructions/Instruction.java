@@ -3,6 +3,7 @@ package Instructions;
 public abstract class Instruction {
     private final int address;
     private int scheduledAddress;
+    private Location location;
     private int scheduledSlot;
     Instruction(int address) {
         this.address = address;
@@ -12,10 +13,17 @@ public abstract class Instruction {
         return address;
     }
     public int getScheduledAddress() {
-        return scheduledAddress;
+        return location == null ? scheduledAddress : location.getAddress();
     }
     public void setScheduledAddress(int address) {
         this.scheduledAddress = address;
+        this.location = null;
+    }
+    /**
+     * Ties the scheduled address to a location, which keeps it current while the schedule grows.
+     */
+    public void setLocation(Location location) {
+        this.location = location;
     }
     public abstract int[] getPipelineSlots();
     public int getScheduledSlot() {
@@ -24,12 +32,34 @@ public abstract class Instruction {
     public void setScheduledSlot(int slot) {
         scheduledSlot = slot;
     }
-    public abstract String toString();
+    /**
+     * Writes the instruction as it appears in a schedule.
+     */
+    public abstract void appendTo(StringBuilder out);
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+    /**
+     * @return the structural identity of the instruction as it currently prints
+     */
+    public abstract InstructionKey key();
+    /**
+     * Writes the predicate guarding the instruction, if it has one.
+     */
+    protected void appendPredicate(StringBuilder out) {
+    }
+    /**
+     * Returns a fresh, unscheduled instance with the operands this instruction was parsed with.
+     */
+    public abstract Instruction copy();
     public abstract int getLatency();
     public boolean isTrueConsumer() {
         return this instanceof Consumer && !(this instanceof Movi);
     }
-    protected int parseImmediate(String imm) {
+    protected static int parseImmediate(String imm) {
         int asInt;
         try {
             asInt = Integer.parseInt(imm);
@@ -0,0 +1,54 @@
+package Instructions;
+
+import java.util.Objects;
+
+/**
+ * What an instruction is, as opposed to where it is: its class and the operands it prints with, so two keys are
+ * equal exactly when the instructions print the same. The hash is computed once, which makes keys cheap to
+ * dedupe and memoize by. A key is taken at a point in time; remapping registers afterwards does not change it.
+ */
+public final class InstructionKey {
+    static final int NONE = -1;
+
+    private final Class<? extends Instruction> opcode;
+    private final int predicate, first, second, third;
+    private final String text;
+    private final int hash;
+
+    InstructionKey(Class<? extends Instruction> opcode, Integer predicate, int first, int second, int third,
+                   String text) {
+        this.opcode = opcode;
+        this.predicate = predicate == null ? NONE : predicate;
+        this.first = first;
+        this.second = second;
+        this.third = third;
+        this.text = text;
+        int h = opcode.hashCode();
+        h = 31 * h + this.predicate;
+        h = 31 * h + first;
+        h = 31 * h + second;
+        h = 31 * h + third;
+        hash = 31 * h + Objects.hashCode(text);
+    }
+
+    InstructionKey(Class<? extends Instruction> opcode, Integer predicate, int first, int second, int third) {
+        this(opcode, predicate, first, second, third, null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof InstructionKey))
+            return false;
+        InstructionKey other = (InstructionKey) o;
+        return hash == other.hash && opcode == other.opcode && predicate == other.predicate &&
+                first == other.first && second == other.second && third == other.third &&
+                Objects.equals(text, other.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
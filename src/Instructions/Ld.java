@@ -5,8 +5,12 @@ import Microarchitecture.Microarchitecture;
 public class Ld extends Producer implements Memory {
     private final int offset;
     public Ld(int address, int destination, String offset, int consumed) {
+        this(address, destination, parseImmediate(offset), consumed);
+    }
+
+    public Ld(int address, int destination, int offset, int consumed) {
         super(address, destination, consumed);
-        this.offset = parseImmediate(offset);
+        this.offset = offset;
     }
 
     @Override
@@ -15,9 +19,14 @@ public class Ld extends Producer implements Memory {
     }
 
     @Override
-    public String toString() {
-        return String.format("%s ld x%d, %d(x%d)",
-                getPredicateString(), getMappedDestination(), getOffset(), getMappedOperandA());
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" ld x").append(getMappedDestination())
+                .append(", ").append(getOffset()).append("(x").append(getMappedOperandA()).append(')');
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Ld.class, predicate, getMappedDestination(), getOffset(), getMappedOperandA());
     }
 
     @Override
@@ -29,4 +38,9 @@ public class Ld extends Producer implements Memory {
     public int getOffset() {
         return offset;
     }
+
+    @Override
+    public Ld copy() {
+        return new Ld(getAddress(), getDestination(), offset, getOperandA());
+    }
 }
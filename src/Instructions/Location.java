@@ -0,0 +1,9 @@
+package Instructions;
+
+/**
+ * Where a scheduled instruction sits. The address is looked up on every call, as inserting bundles ahead of a
+ * location moves it.
+ */
+public interface Location {
+    int getAddress();
+}
@@ -5,7 +5,15 @@ public class Loop extends Branch {
         super(address, target);
     }
     @Override
-    public String toString() {
-        return String.format(" loop %d", getTarget());
+    public Loop copy() {
+        return new Loop(getAddress(), getTarget());
+    }
+    @Override
+    public void appendTo(StringBuilder out) {
+        out.append(" loop ").append(getTarget());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Loop.class, null, getTarget(), InstructionKey.NONE, InstructionKey.NONE);
     }
 }
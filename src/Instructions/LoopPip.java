@@ -7,7 +7,16 @@ public class LoopPip extends Branch {
     }
 
     @Override
-    public String toString() {
-        return String.format(" loop.pip %d", getTarget());
+    public LoopPip copy() {
+        return new LoopPip(getAddress(), getTarget());
+    }
+
+    @Override
+    public void appendTo(StringBuilder out) {
+        out.append(" loop.pip ").append(getTarget());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(LoopPip.class, null, getTarget(), InstructionKey.NONE, InstructionKey.NONE);
     }
 }
@@ -5,7 +5,17 @@ public class Mov extends Arithmetic {
         super(address, destination, consumed);
     }
     @Override
-    public String toString() {
-        return String.format("%s mov x%d, x%d", getPredicateString(), getMappedDestination(), getMappedOperandA());
+    public Mov copy() {
+        return new Mov(getAddress(), getDestination(), getOperandA());
+    }
+    @Override
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" mov x").append(getMappedDestination()).append(", x").append(getMappedOperandA());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Mov.class, predicate,
+                getMappedDestination(), getMappedOperandA(), InstructionKey.NONE);
     }
 }
@@ -11,13 +11,28 @@ public class MovLoop extends Instruction {
         this.destination = destination;
         this.immediate = immediate;
     }
+    public String getDestination() {
+        return destination;
+    }
+    public int getImmediate() {
+        return immediate;
+    }
     @Override
     public int[] getPipelineSlots() {
         return Microarchitecture.ALU_SLOTS;
     }
     @Override
-    public String toString() {
-        return String.format(" mov %s, %d", destination, immediate);
+    public MovLoop copy() {
+        return new MovLoop(getAddress(), destination, immediate);
+    }
+    @Override
+    public void appendTo(StringBuilder out) {
+        out.append(" mov ").append(destination).append(", ").append(immediate);
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(MovLoop.class, null,
+                immediate, InstructionKey.NONE, InstructionKey.NONE, destination);
     }
     @Override
     public int getLatency() {
@@ -12,14 +12,29 @@ public class MovP extends Instruction {
         this.immediate = immediate;
     }
 
+    public int getDestination() {
+        return destination;
+    }
+    public String getImmediate() {
+        return immediate;
+    }
     @Override
     public int[] getPipelineSlots() {
         return Microarchitecture.ALU_SLOTS;
     }
 
     @Override
-    public String toString() {
-        return String.format(" mov p%d, %s", destination, immediate);
+    public MovP copy() {
+        return new MovP(getAddress(), destination, immediate);
+    }
+
+    @Override
+    public void appendTo(StringBuilder out) {
+        out.append(" mov p").append(destination).append(", ").append(immediate);
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(MovP.class, null, destination, InstructionKey.NONE, InstructionKey.NONE, immediate);
     }
 
     @Override
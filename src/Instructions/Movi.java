@@ -9,13 +9,23 @@ public class Movi extends Arithmetic implements Immediate {
         setOperandA(parseImmediate(immediate));
     }
     @Override
-    public String toString() {
-        return String.format("%s mov x%d, %s",
-                getPredicateString(), getMappedDestination(), getMappedOperandA());
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" mov x").append(getMappedDestination()).append(", ").append(getMappedOperandA());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Movi.class, predicate,
+                getMappedDestination(), getMappedOperandA(), InstructionKey.NONE);
     }
 
     @Override
     public String getImmediate() {
         return immediate;
     }
+
+    @Override
+    public Movi copy() {
+        return new Movi(getAddress(), getDestination(), immediate);
+    }
 }
@@ -1,5 +1,7 @@
 package Instructions;
 
+import Tracing.Trace;
+
 public abstract class Multiplicative extends Producer implements DoubleConsumer {
     private final int operandB;
     private int mappedOperandB;
@@ -16,6 +18,8 @@ public abstract class Multiplicative extends Producer implements DoubleConsumer
     }
     @Override
     public void setOperandB(int operand) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "b", mappedOperandB, operand);
         this.mappedOperandB = operand;
         this.operandBRemapped = true;
     }
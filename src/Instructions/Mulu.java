@@ -13,9 +13,15 @@ public class Mulu extends Multiplicative {
     }
 
     @Override
-    public String toString() {
-        return String.format("%s mulu x%d, x%d, x%d",
-                getPredicateString(), getMappedDestination(), getMappedOperandA(), getMappedOperandB());
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" mulu x").append(getMappedDestination())
+                .append(", x").append(getMappedOperandA()).append(", x").append(getMappedOperandB());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Mulu.class, predicate,
+                getMappedDestination(), getMappedOperandA(), getMappedOperandB());
     }
 
     @Override
@@ -23,5 +29,10 @@ public class Mulu extends Multiplicative {
         return 3;
     }
 
+    @Override
+    public Mulu copy() {
+        return new Mulu(getAddress(), getDestination(), getOperandA(), getOperandB());
+    }
+
 
 }
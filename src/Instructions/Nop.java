@@ -3,16 +3,9 @@ package Instructions;
 import Microarchitecture.Microarchitecture;
 
 public class Nop extends Instruction {
-    private boolean reserved = false;
     public Nop(int address) {
         super(address);
     }
-    public boolean isReserved() {
-        return reserved;
-    }
-    public void markReserved() {
-        reserved = true;
-    }
     @Override
     public int getLatency() {
         return 1;
@@ -22,7 +15,15 @@ public class Nop extends Instruction {
         return Microarchitecture.NOP_SLOTS;
     }
     @Override
-    public String toString() {
-        return reserved ? " --- " : " nop";
+    public Nop copy() {
+        return new Nop(getAddress());
+    }
+    @Override
+    public void appendTo(StringBuilder out) {
+        out.append(" nop");
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Nop.class, null, InstructionKey.NONE, InstructionKey.NONE, InstructionKey.NONE);
     }
 }
@@ -2,5 +2,7 @@ package Instructions;
 
 public interface Predicateable {
     void setPredicate(int predicate);
+    // The predicate register guarding the instruction, or null if it always executes
+    Integer getPredicate();
     String getPredicateString();
 }
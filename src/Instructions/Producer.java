@@ -1,5 +1,7 @@
 package Instructions;
 
+import Tracing.Trace;
+
 public abstract class Producer extends Consumer implements Predicateable {
     private final int destination;
     private int mappedDestination;
@@ -15,6 +17,8 @@ public abstract class Producer extends Consumer implements Predicateable {
         return destination;
     }
     public void setMappedDestination(int destination) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "dest", mappedDestination, destination);
         this.mappedDestination = destination;
         this.remappedDestination = true;
     }
@@ -29,7 +33,16 @@ public abstract class Producer extends Consumer implements Predicateable {
         this.predicate = predicate;
     }
     @Override
+    public Integer getPredicate() {
+        return predicate;
+    }
+    @Override
     public String getPredicateString() {
-        return predicate == null ? "" : String.format("(p%d)", predicate);
+        return predicate == null ? "" : "(p" + predicate + ")";
+    }
+    @Override
+    protected void appendPredicate(StringBuilder out) {
+        if (predicate != null)
+            out.append("(p").append((int) predicate).append(')');
     }
 }
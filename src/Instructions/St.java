@@ -1,6 +1,7 @@
 package Instructions;
 
 import Microarchitecture.Microarchitecture;
+import Tracing.Trace;
 
 public class St extends Consumer implements Predicateable, Memory, DoubleConsumer {
     private final int offset;
@@ -10,8 +11,12 @@ public class St extends Consumer implements Predicateable, Memory, DoubleConsume
     protected Integer predicate = null;
 
     public St(int address, int consumed, String offset, int memoryDestination) {
+        this(address, consumed, parseImmediate(offset), memoryDestination);
+    }
+
+    public St(int address, int consumed, int offset, int memoryDestination) {
         super(address, consumed);
-        this.offset = parseImmediate(offset);
+        this.offset = offset;
         this.operandB = memoryDestination;
         this.mappedOperandB = operandB;
         this.operandBRemapped = false;
@@ -23,9 +28,14 @@ public class St extends Consumer implements Predicateable, Memory, DoubleConsume
     }
 
     @Override
-    public String toString() {
-        return String.format("%s st x%d, %d(x%d)",
-                getPredicateString(), getMappedOperandA(), getOffset(), getMappedOperandB());
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" st x").append(getMappedOperandA())
+                .append(", ").append(getOffset()).append("(x").append(getMappedOperandB()).append(')');
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(St.class, predicate, getMappedOperandA(), getOffset(), getMappedOperandB());
     }
 
     @Override
@@ -38,6 +48,8 @@ public class St extends Consumer implements Predicateable, Memory, DoubleConsume
     }
     @Override
     public void setOperandB(int operand) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "b", mappedOperandB, operand);
         this.mappedOperandB = operand;
         this.operandBRemapped = true;
     }
@@ -54,11 +66,24 @@ public class St extends Consumer implements Predicateable, Memory, DoubleConsume
         return offset;
     }
     @Override
+    public St copy() {
+        return new St(getAddress(), getOperandA(), offset, operandB);
+    }
+    @Override
     public void setPredicate(int predicate) {
         this.predicate = predicate;
     }
     @Override
+    public Integer getPredicate() {
+        return predicate;
+    }
+    @Override
     public String getPredicateString() {
-        return predicate == null ? "" : String.format("(p%d)", predicate);
+        return predicate == null ? "" : "(p" + predicate + ")";
+    }
+    @Override
+    protected void appendPredicate(StringBuilder out) {
+        if (predicate != null)
+            out.append("(p").append((int) predicate).append(')');
     }
 }
@@ -1,5 +1,7 @@
 package Instructions;
 
+import Tracing.Trace;
+
 public class Sub extends Arithmetic implements DoubleConsumer {
     private final int operandB;
     private int mappedOperandB;
@@ -18,6 +20,8 @@ public class Sub extends Arithmetic implements DoubleConsumer {
 
     @Override
     public void setOperandB(int operand) {
+        if (Trace.ENABLED)
+            Trace.remap(getAddress(), "b", mappedOperandB, operand);
         this.mappedOperandB = operand;
         operandBRemapped = true;
     }
@@ -33,8 +37,19 @@ public class Sub extends Arithmetic implements DoubleConsumer {
     }
 
     @Override
-    public String toString() {
-        return String.format("%s sub x%d, x%d, x%d",
-                getPredicateString(), getMappedDestination(), getMappedOperandA(), getMappedOperandB());
+    public Sub copy() {
+        return new Sub(getAddress(), getDestination(), getOperandA(), operandB);
+    }
+
+    @Override
+    public void appendTo(StringBuilder out) {
+        appendPredicate(out);
+        out.append(" sub x").append(getMappedDestination())
+                .append(", x").append(getMappedOperandA()).append(", x").append(getMappedOperandB());
+    }
+    @Override
+    public InstructionKey key() {
+        return new InstructionKey(Sub.class, predicate,
+                getMappedDestination(), getMappedOperandA(), getMappedOperandB());
     }
 }
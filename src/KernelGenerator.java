@@ -0,0 +1,223 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random but well-formed programs in the input.json format: BB0 sets up the loop count and the
+ * registers the loop reads, BB1 is the loop body ending in the loop branch, and BB2 consumes what the loop left
+ * behind. The same seed and options always give the same program.
+ *
+ * Each source operand reads one of the most recently written registers of its basic block with the given
+ * dependency density, and otherwise reads a register set up in BB0. Recurrences are registers the loop body
+ * reads before writing them again, which makes them loop-carried dependencies.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./generate.sh --bb0 100 --bb1 800 --bb2 100 --mulu 0.3 --recurrences 2 --seed 7 kernel.json
+ */
+public class KernelGenerator {
+    // x1 is the address base the loop advances, followed by the registers BB0 sets up for the loop to read
+    private static final int BASE_REGISTER = 1;
+    private static final int LIVE_IN_START = 2;
+    private static final int LIVE_INS = 6;
+    private static final int MAX_RECURRENCES = 8;
+    private static final int FIRST_FREE_REGISTER = LIVE_IN_START + LIVE_INS + MAX_RECURRENCES;
+    private static final int LAST_REGISTER = 31;
+    // How far back a dependent operand may look for its producer
+    private static final int WINDOW = 4;
+
+    long seed = 1;
+    int basicBlockZero = 16, basicBlockOne = 32, basicBlockTwo = 16;
+    int loopCount = 100;
+    double density = 0.5;
+    double muluShare = 0.2, ldShare = 0.2, stShare = 0.2;
+    int recurrences = 1;
+
+    private Random random;
+    private List<String> program;
+    private int[] recent;
+    private int recentCount, nextDestination;
+
+    public static void main(String[] args) throws IOException {
+        KernelGenerator generator = new KernelGenerator();
+        String output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seed" -> generator.seed = Long.parseLong(args[++i]);
+                    case "--bb0" -> generator.basicBlockZero = Integer.parseInt(args[++i]);
+                    case "--bb1" -> generator.basicBlockOne = Integer.parseInt(args[++i]);
+                    case "--bb2" -> generator.basicBlockTwo = Integer.parseInt(args[++i]);
+                    case "--loop-count" -> generator.loopCount = Integer.parseInt(args[++i]);
+                    case "--density" -> generator.density = Double.parseDouble(args[++i]);
+                    case "--mulu" -> generator.muluShare = Double.parseDouble(args[++i]);
+                    case "--ld" -> generator.ldShare = Double.parseDouble(args[++i]);
+                    case "--st" -> generator.stShare = Double.parseDouble(args[++i]);
+                    case "--recurrences" -> generator.recurrences = Integer.parseInt(args[++i]);
+                    default -> {
+                        if (args[i].startsWith("--") || output != null)
+                            throw new IllegalArgumentException(String.format("unknown option '%s'", args[i]));
+                        output = args[i];
+                    }
+                }
+            }
+            generator.validate();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.printf("%s\n", e.getMessage());
+            System.out.print("usage: java KernelGenerator [--seed n] [--bb0 n] [--bb1 n] [--bb2 n] [--loop-count n] " +
+                    "[--density p] [--mulu p] [--ld p] [--st p] [--recurrences n] [output.json]\n");
+            System.exit(0);
+        }
+
+        if (output == null) {
+            PrintWriter writer = new PrintWriter(System.out);
+            generator.write(writer);
+            writer.flush();
+        } else {
+            try (Writer writer = new FileWriter(output)) {
+                generator.write(writer);
+            }
+        }
+    }
+
+    /**
+     * Splits a total instruction count over the three basic blocks, with a loop body of the given size.
+     */
+    static KernelGenerator ofSize(int size, int body, long seed) {
+        KernelGenerator generator = new KernelGenerator();
+        generator.seed = seed;
+        generator.basicBlockOne = body;
+        generator.basicBlockZero = Math.max(2 + LIVE_INS + MAX_RECURRENCES, (size - body) / 2);
+        generator.basicBlockTwo = Math.max(0, size - body - generator.basicBlockZero);
+        return generator;
+    }
+
+    void validate() {
+        if (recurrences < 0 || recurrences > MAX_RECURRENCES)
+            throw new IllegalArgumentException(String.format("recurrences must be within [0, %d]", MAX_RECURRENCES));
+        if (basicBlockZero < 2 + LIVE_INS + recurrences)
+            throw new IllegalArgumentException(String.format("BB0 needs at least %d instructions to set up the loop",
+                    2 + LIVE_INS + recurrences));
+        if (basicBlockOne < 2 + 2 * recurrences)
+            throw new IllegalArgumentException(String.format("BB1 needs at least %d instructions for the branch, " +
+                    "the address increment and the recurrences", 2 + 2 * recurrences));
+        if (basicBlockTwo < 0)
+            throw new IllegalArgumentException("BB2 cannot have a negative size");
+        if (density < 0 || density > 1)
+            throw new IllegalArgumentException("density must be within [0, 1]");
+        if (muluShare < 0 || ldShare < 0 || stShare < 0 || muluShare + ldShare + stShare > 1)
+            throw new IllegalArgumentException("the mulu, ld and st shares must be non-negative and sum to at most 1");
+    }
+
+    List<String> generate() {
+        validate();
+        random = new Random(seed);
+        program = new ArrayList<>(basicBlockZero + basicBlockOne + basicBlockTwo);
+        recent = new int[WINDOW];
+        nextDestination = 0;
+
+        // BB0: loop count, address base, the registers the loop reads and the initial recurrence values
+        startBasicBlock();
+        program.add(String.format("mov LC, %d", loopCount));
+        program.add(String.format("mov x%d, 0x%x", BASE_REGISTER, 0x1000));
+        for (int i = 0; i < LIVE_INS; i++)
+            program.add(String.format("mov x%d, %d", LIVE_IN_START + i, random.nextInt(64)));
+        for (int i = 0; i < recurrences; i++)
+            program.add(String.format("mov x%d, %d", recurrenceRegister(i), 1 + random.nextInt(8)));
+        fill(basicBlockZero);
+
+        // BB1: recurrences are read first and written back last, around the randomly generated work
+        int loopStart = program.size();
+        int loopEnd = loopStart + basicBlockOne;
+        startBasicBlock();
+        for (int i = 0; i < recurrences; i++) {
+            int operand = operand();
+            program.add(String.format("%s x%d, x%d, x%d", random.nextDouble() < muluShare ? "mulu" : "add",
+                    nextDestination(), recurrenceRegister(i), operand));
+        }
+        fill(loopEnd - 2 - recurrences);
+        for (int i = 0; i < recurrences; i++) {
+            program.add(String.format("%s x%d, x%d, x%d", random.nextBoolean() ? "add" : "sub",
+                    recurrenceRegister(i), recurrenceRegister(i), operand()));
+        }
+        program.add(String.format("addi x%d, x%d, %d", BASE_REGISTER, BASE_REGISTER, 8));
+        program.add(String.format("loop %d", loopStart));
+
+        // BB2: keeps reading what the loop produced
+        fill(loopEnd + basicBlockTwo);
+        return program;
+    }
+
+    void write(Writer writer) throws IOException {
+        List<String> instructions = generate();
+        writer.write("[\n");
+        for (int i = 0; i < instructions.size(); i++) {
+            writer.write("\t\"");
+            writer.write(instructions.get(i));
+            writer.write(i == instructions.size() - 1 ? "\"\n" : "\",\n");
+        }
+        writer.write("]\n");
+    }
+
+    String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private void fill(int end) {
+        while (program.size() < end) {
+            double kind = random.nextDouble();
+            if (kind < muluShare) {
+                int a = operand(), b = operand();
+                program.add(String.format("mulu x%d, x%d, x%d", nextDestination(), a, b));
+            } else if (kind < muluShare + ldShare) {
+                program.add(String.format("ld x%d, %d(x%d)", nextDestination(), 8 * random.nextInt(16), BASE_REGISTER));
+            } else if (kind < muluShare + ldShare + stShare) {
+                program.add(String.format("st x%d, %d(x%d)", operand(), 8 * random.nextInt(16), BASE_REGISTER));
+            } else {
+                int a = operand(), b = operand();
+                program.add(switch (random.nextInt(4)) {
+                    case 0 -> String.format("add x%d, x%d, x%d", nextDestination(), a, b);
+                    case 1 -> String.format("sub x%d, x%d, x%d", nextDestination(), a, b);
+                    case 2 -> String.format("addi x%d, x%d, %d", nextDestination(), a, random.nextInt(256));
+                    default -> String.format("mov x%d, x%d", nextDestination(), a);
+                });
+            }
+        }
+    }
+
+    private void startBasicBlock() {
+        recentCount = 0;
+    }
+
+    /**
+     * Picks a source register: one written shortly before in the same basic block with the dependency density's
+     * probability, otherwise one of the registers BB0 set up.
+     */
+    private int operand() {
+        if (recentCount > 0 && random.nextDouble() < density)
+            return recent[random.nextInt(Math.min(recentCount, WINDOW))];
+        return LIVE_IN_START + random.nextInt(LIVE_INS);
+    }
+
+    private int nextDestination() {
+        int destination = FIRST_FREE_REGISTER + nextDestination;
+        nextDestination = (nextDestination + 1) % (LAST_REGISTER - FIRST_FREE_REGISTER + 1);
+        recent[recentCount++ % WINDOW] = destination;
+        return destination;
+    }
+
+    private static int recurrenceRegister(int index) {
+        return LIVE_IN_START + LIVE_INS + index;
+    }
+}
@@ -1,8 +1,13 @@
 import Instructions.Instruction;
-import Microarchitecture.Microarchitecture;
+import Microarchitecture.RegisterAllocator;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Example execution with run scripts:
@@ -18,12 +23,73 @@ public class Main {
 
         String input = args[0], simpleOutput = args[1], pipOutput = args[2];
 
-        Schedule simple = Scheduler.schedule(IO.parseInstructions(input), false);
-        IO.dump(simple, simpleOutput);
+        Path sidecar = ScheduleMetrics.sidecarFromEnvironment();
+        ScheduleMetrics metrics = sidecar == null ? ScheduleMetrics.DISABLED : new ScheduleMetrics(input);
+        try {
+            ArrayList<Instruction> program = metrics.phase(ScheduleMetrics.PROGRAM, "parse", () ->
+                    IO.parseInstructions(input));
+            ScheduleCache cache = ScheduleCache.fromEnvironment();
+            if (cache == null) {
+                Schedule[] schedules = schedule(program, metrics);
+                dump(schedules[0], simpleOutput, ScheduleMetrics.LOOP, metrics);
+                dump(schedules[1], pipOutput, ScheduleMetrics.LOOP_PIP, metrics);
+            } else {
+                // A hit skips analysis and scheduling altogether
+                String key = ScheduleCache.key(program);
+                ScheduleCache.Schedules cached = cache.get(key);
+                boolean hit = cached != null;
+                if (!hit) {
+                    Schedule[] schedules = schedule(program, metrics);
+                    cached = new ScheduleCache.Schedules(
+                            metrics.phase(ScheduleMetrics.LOOP, "dump", () -> IO.dump(schedules[0])),
+                            metrics.phase(ScheduleMetrics.LOOP_PIP, "dump", () -> IO.dump(schedules[1])));
+                }
+                Files.write(Paths.get(simpleOutput), cached.loop);
+                Files.write(Paths.get(pipOutput), cached.loopPip);
+                // Stored only once the outputs are written; a failed store is reported, not a failed compile
+                if (!hit)
+                    cache.put(key, cached);
+                System.err.println(cache.report());
+            }
+            if (sidecar != null)
+                metrics.write(sidecar);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
 
-        Microarchitecture.reset();
+    /**
+     * @return the sequential and the pipelined schedule of the program
+     */
+    private static Schedule[] schedule(ArrayList<Instruction> program, ScheduleMetrics metrics) {
+        AnalyzedProgram analyzed = metrics.phase(ScheduleMetrics.PROGRAM, "analyze", () -> Scheduler.analyze(program));
+
+        // Both back-ends fork the analyzed program, so they can be built at the same time
+        CompletableFuture<Schedule> simple = CompletableFuture.supplyAsync(() ->
+                Scheduler.schedule(analyzed, false, new RegisterAllocator(), metrics));
+        CompletableFuture<Schedule> pipelined = CompletableFuture.supplyAsync(() ->
+                Scheduler.schedule(analyzed, true, new RegisterAllocator(), metrics));
+        return new Schedule[] {await(simple), await(pipelined)};
+    }
 
-        Schedule pipelined = Scheduler.schedule(IO.parseInstructions(input), true);
-        IO.dump(pipelined, pipOutput);
+    private static void dump(Schedule schedule, String path, String section, ScheduleMetrics metrics)
+            throws IOException {
+        metrics.phase(section, "dump", () -> {
+            IO.dump(schedule, path);
+            return schedule;
+        });
+    }
+
+    private static Schedule await(CompletableFuture<Schedule> schedule) {
+        try {
+            return schedule.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
     }
 }
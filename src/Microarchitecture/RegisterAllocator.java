@@ -0,0 +1,61 @@
+package Microarchitecture;
+
+/**
+ * Hands out fresh simple, rotating and predicate registers for a single scheduling run.
+ * Every call to Scheduler.schedule owns its own allocator, so concurrent runs never share counters.
+ */
+public class RegisterAllocator {
+    private static final int SIMPLE_REGISTER_START = 1;
+    private static final int ROTATING_REGISTER_START = 32;
+    private static final int ROTATING_PREDICATE_REGISTER_START = 32;
+    private final static int MAX_REGISTERS = Microarchitecture.REGISTERS;
+    private int simpleRegister = SIMPLE_REGISTER_START;
+    private int rotatingRegister = ROTATING_REGISTER_START;
+    private int rotatingPredicateRegister = ROTATING_PREDICATE_REGISTER_START;
+    // Rotating registers handed out, counting every stage a register rotates through and every wrap around
+    private int rotatingRegisters = 0;
+
+    public int getFreshSimpleRegister() {
+        if (simpleRegister == ROTATING_REGISTER_START)
+            exhausted("simple", 1, simpleRegister - SIMPLE_REGISTER_START);
+        assert simpleRegister != MAX_REGISTERS;
+        return simpleRegister++;
+    }
+
+    public int getFreshRotatingRegister(int loopStages) {
+        int tmp = rotatingRegister;
+        rotatingRegister += loopStages + 1;
+        rotatingRegisters += loopStages + 1;
+        if (rotatingRegister > MAX_REGISTERS) {
+            exhausted("rotating", loopStages + 1, rotatingRegisters - loopStages - 1);
+            rotatingRegister = rotatingRegister % MAX_REGISTERS + 32;
+        }
+        return tmp;
+    }
+
+    public int getFreshRotatingPredicate() {
+        return rotatingPredicateRegister++;
+    }
+
+    private static void exhausted(String kind, int requested, int handedOut) {
+        RegisterExhaustionEvent event = new RegisterExhaustionEvent();
+        if (!event.shouldCommit())
+            return;
+        event.kind = kind;
+        event.requested = requested;
+        event.handedOut = handedOut;
+        event.commit();
+    }
+
+    public int getSimpleRegistersUsed() {
+        return simpleRegister - SIMPLE_REGISTER_START;
+    }
+
+    public int getRotatingRegistersUsed() {
+        return rotatingRegisters;
+    }
+
+    public int getRotatingPredicatesUsed() {
+        return rotatingPredicateRegister - ROTATING_PREDICATE_REGISTER_START;
+    }
+}
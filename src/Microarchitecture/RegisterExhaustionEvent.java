@@ -0,0 +1,28 @@
+package Microarchitecture;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a register allocator running out of registers: the simple registers are used up, or
+ * the rotating ones wrap around onto registers handed out before.
+ */
+@Name("scheduler.RegisterExhaustion")
+@Label("Register Exhaustion")
+@Category("Scheduler")
+@Description("A register allocator ran out of simple registers or wrapped around its rotating ones")
+class RegisterExhaustionEvent extends Event {
+    @Label("Kind")
+    String kind;
+
+    @Label("Requested")
+    @Description("Registers the allocation asked for")
+    int requested;
+
+    @Label("Handed Out")
+    @Description("Registers of the kind handed out before")
+    int handedOut;
+}
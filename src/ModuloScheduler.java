@@ -0,0 +1,331 @@
+import Instructions.Instruction;
+import Instructions.Nop;
+import Microarchitecture.Microarchitecture;
+import Tracing.Trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Iterative modulo scheduling of a loop body. Every operation gets an issue time relative to the start of its
+ * iteration and a slot, such that one iteration can be started every initiation interval (II):
+ *
+ * - the modulo reservation table (MRT) has a row per cycle of the II and a column per pipeline slot, and an
+ *   operation issued at time t occupies row t % II, so no two operations of overlapping iterations share a slot;
+ * - a local dependency needs t(consumer) >= t(producer) + latency, an interloop dependency reads the previous
+ *   iteration's value and needs t(consumer) + II >= t(producer) + latency;
+ * - the loop branch is fixed in the last row.
+ *
+ * Operations are placed highest first, the height being the longest latency path from an operation through its
+ * dependents. An operation takes the first free slot within an II of its earliest time that keeps its placed
+ * dependents valid. If there is none it is forced in anyway, evicting the operation in its slot and any dependent
+ * it now comes too late for; evicted operations are placed again later. When the budget of placements runs out
+ * before every operation is placed, the II is increased.
+ */
+class ModuloScheduler {
+    // Placements allowed per operation before giving up on an II
+    private static final int BUDGET_RATIO = 4;
+    private static final int UNSCHEDULED = Integer.MIN_VALUE;
+    private static final int FREE = -1;
+    // Dependencies between loop operations; the others only bound the earliest times
+    private static final int[] LOOP_KINDS = {DependencyGraph.LOCAL, DependencyGraph.INTERLOOP};
+
+    private final ArrayList<Instruction> program;
+    private final int start, operations;
+    private final int[] earliest;
+
+    // Dependencies between operations, indexed by address - start: predecessors and successors with their distances
+    private final int[] predecessorStart, predecessors, predecessorDistances;
+    private final int[] successorStart, successors, successorDistances;
+
+    private int ii;
+    private int[] time, slot, previousTime, height, mrt;
+    private final Counters counters = new Counters();
+    // The last dependency an attempt broke by placing a producer too late for its consumer, -1 if none
+    private int brokenProducer, brokenConsumer;
+
+    /**
+     * @param start    address of the first loop instruction
+     * @param branch   address of the loop branch, which ends the loop body
+     * @param earliest per operation, the earliest time its operands from before the loop are available
+     */
+    ModuloScheduler(ArrayList<Instruction> program, DependencyGraph graph, int start, int branch, int[] earliest) {
+        this.program = program;
+        this.start = start;
+        this.operations = branch - start;
+        this.earliest = earliest;
+
+        predecessorStart = new int[operations + 1];
+        for (int c = 0; c < operations; c++)
+            predecessorStart[c + 1] = predecessorStart[c] + countLoopEdges(graph, start + c);
+        predecessors = new int[predecessorStart[operations]];
+        predecessorDistances = new int[predecessors.length];
+        successorStart = new int[operations + 1];
+        for (int c = 0, edge = 0; c < operations; c++) {
+            for (int kind : LOOP_KINDS)
+                for (int e = graph.start(start + c, kind); e < graph.end(start + c, kind); e++) {
+                    if (graph.producer(e) < start)
+                        continue;
+                    predecessors[edge] = graph.producer(e) - start;
+                    predecessorDistances[edge++] = kind == DependencyGraph.INTERLOOP ? 1 : 0;
+                    successorStart[graph.producer(e) - start + 1]++;
+                }
+        }
+        for (int p = 0; p < operations; p++)
+            successorStart[p + 1] += successorStart[p];
+        successors = new int[predecessors.length];
+        successorDistances = new int[predecessors.length];
+        int[] next = Arrays.copyOf(successorStart, operations);
+        for (int c = 0; c < operations; c++)
+            for (int e = predecessorStart[c]; e < predecessorStart[c + 1]; e++) {
+                successors[next[predecessors[e]]] = c;
+                successorDistances[next[predecessors[e]]++] = predecessorDistances[e];
+            }
+    }
+
+    /**
+     * Schedules the loop at the lowest II from the given one on that the budget allows.
+     * @return the II found
+     */
+    int schedule(int minimumInitiationInterval) {
+        ii = Math.max(1, minimumInitiationInterval);
+        while (true) {
+            SchedulerEvents.InitiationIntervalEscalation event = new SchedulerEvents.InitiationIntervalEscalation();
+            event.begin();
+            int placements = counters.placements, evictions = counters.evictions;
+            if (scheduleAt())
+                return ii;
+            if (event.shouldCommit()) {
+                event.loopStart = start;
+                event.operations = operations;
+                event.oldInitiationInterval = ii;
+                event.newInitiationInterval = ii + 1;
+                event.placements = counters.placements - placements;
+                event.evictions = counters.evictions - evictions;
+                event.producer = brokenProducer < 0 ? -1 : start + brokenProducer;
+                event.consumer = brokenConsumer < 0 ? -1 : start + brokenConsumer;
+                event.commit();
+            }
+            ii++;
+        }
+    }
+
+    Counters getCounters() {
+        return counters;
+    }
+
+    int getTime(int address) {
+        return time[address - start];
+    }
+
+    int getSlot(int address) {
+        return slot[address - start];
+    }
+
+    /**
+     * @return the number of stages, II cycles each, an iteration spans
+     */
+    int getStages() {
+        int last = ii - 1;
+        for (int t : time)
+            last = Math.max(last, t);
+        return last / ii + 1;
+    }
+
+    private boolean scheduleAt() {
+        counters.attempts++;
+        brokenProducer = brokenConsumer = -1;
+        time = new int[operations];
+        slot = new int[operations];
+        previousTime = new int[operations];
+        Arrays.fill(time, UNSCHEDULED);
+        Arrays.fill(previousTime, UNSCHEDULED);
+        mrt = new int[ii * Microarchitecture.PIPELINE_WIDTH];
+        Arrays.fill(mrt, FREE);
+        mrt[(ii - 1) * Microarchitecture.PIPELINE_WIDTH + Microarchitecture.BR_SLOTS[0]] = operations;
+        computeHeights();
+
+        // Operations ranked by priority; a set bit is an operation still to be placed
+        Integer[] byPriority = new Integer[operations];
+        for (int op = 0; op < operations; op++)
+            byPriority[op] = op;
+        Arrays.sort(byPriority, (a, b) ->
+                height[a] != height[b] ? Integer.compare(height[b], height[a]) : Integer.compare(a, b));
+        int[] rank = new int[operations];
+        for (int r = 0; r < operations; r++)
+            rank[byPriority[r]] = r;
+        BitSet pending = new BitSet(operations);
+        for (int op = 0; op < operations; op++) {
+            // Nops take no slot; they are not placed at all
+            if (program.get(start + op) instanceof Nop)
+                time[op] = 0;
+            else
+                pending.set(rank[op]);
+        }
+
+        for (int budget = BUDGET_RATIO * operations; !pending.isEmpty(); budget--) {
+            if (budget == 0)
+                return false;
+            int op = byPriority[pending.nextSetBit(0)];
+            pending.clear(rank[op]);
+
+            int estart = earliestStart(op);
+            if (!place(op, estart)) {
+                // No free slot within an II of the earliest start: take one anyway, a cycle later than last time
+                int t = previousTime[op] == UNSCHEDULED || estart > previousTime[op] ? estart : previousTime[op] + 1;
+                int s = victimSlot(op, t, rank);
+                counters.forced++;
+                int occupant = mrt[row(t) + s];
+                if (occupant != FREE) {
+                    unschedule(occupant);
+                    pending.set(rank[occupant]);
+                }
+                assign(op, t, s);
+                if (Trace.ENABLED)
+                    Trace.reserve(start + op, ii, t, s, true);
+            }
+
+            // Dependents placed before this operation may now be too early
+            int t = time[op];
+            for (int e = successorStart[op]; e < successorStart[op + 1]; e++) {
+                int dependent = successors[e];
+                if (dependent != op && time[dependent] != UNSCHEDULED &&
+                        time[dependent] + ii * successorDistances[e] < t + latency(op)) {
+                    brokenProducer = op;
+                    brokenConsumer = dependent;
+                    unschedule(dependent);
+                    pending.set(rank[dependent]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot to force the operation into at time t: a free one if there is, otherwise the one whose
+     * occupant has the lowest height, the lowest priority breaking ties
+     */
+    private int victimSlot(int op, int t, int[] rank) {
+        int victim = -1;
+        for (int s : program.get(start + op).getPipelineSlots()) {
+            int occupant = mrt[row(t) + s];
+            if (occupant == FREE)
+                return s;
+            // The loop branch keeps its slot
+            if (occupant == operations)
+                continue;
+            if (victim == -1)
+                victim = s;
+            int current = mrt[row(t) + victim];
+            if (height[occupant] < height[current] ||
+                    height[occupant] == height[current] && rank[occupant] > rank[current])
+                victim = s;
+        }
+        return victim;
+    }
+
+    /**
+     * Places the operation in the first free slot within an II of its earliest start that is not too late for its
+     * dependents already placed.
+     */
+    private boolean place(int op, int estart) {
+        int[] slots = program.get(start + op).getPipelineSlots();
+        int last = Math.min(estart + ii - 1, latestStart(op));
+        for (int t = estart; t <= last; t++)
+            for (int s : slots)
+                if (mrt[row(t) + s] == FREE) {
+                    assign(op, t, s);
+                    if (Trace.ENABLED)
+                        Trace.reserve(start + op, ii, t, s, false);
+                    return true;
+                }
+        return false;
+    }
+
+    private int earliestStart(int op) {
+        int estart = earliest[op];
+        for (int e = predecessorStart[op]; e < predecessorStart[op + 1]; e++) {
+            int p = predecessors[e];
+            if (p != op && time[p] != UNSCHEDULED)
+                estart = Math.max(estart, time[p] + latency(p) - ii * predecessorDistances[e]);
+        }
+        return estart;
+    }
+
+    // Latest time an operation can issue without coming too late for its placed dependents
+    private int latestStart(int op) {
+        int lstart = Integer.MAX_VALUE;
+        for (int e = successorStart[op]; e < successorStart[op + 1]; e++) {
+            int s = successors[e];
+            if (s != op && time[s] != UNSCHEDULED)
+                lstart = Math.min(lstart, time[s] + ii * successorDistances[e] - latency(op));
+        }
+        return lstart;
+    }
+
+    /**
+     * Height of every operation: its latency plus the longest path of latency - II * distance through its
+     * dependents. Relaxed backwards through the loop body until it settles, which it does as the II is at least
+     * the recurrence bound.
+     */
+    private void computeHeights() {
+        height = new int[operations];
+        for (int op = 0; op < operations; op++)
+            height[op] = latency(op);
+        for (int round = 0; round <= operations; round++) {
+            boolean changed = false;
+            for (int op = operations - 1; op >= 0; op--)
+                for (int e = successorStart[op]; e < successorStart[op + 1]; e++) {
+                    int h = latency(op) - ii * successorDistances[e] + height[successors[e]];
+                    if (h > height[op]) {
+                        height[op] = h;
+                        changed = true;
+                    }
+                }
+            if (!changed)
+                return;
+        }
+    }
+
+    private void assign(int op, int t, int s) {
+        time[op] = t;
+        slot[op] = s;
+        previousTime[op] = t;
+        mrt[row(t) + s] = op;
+        counters.placements++;
+    }
+
+    private void unschedule(int op) {
+        mrt[row(time[op]) + slot[op]] = FREE;
+        time[op] = UNSCHEDULED;
+        counters.evictions++;
+        if (Trace.ENABLED)
+            Trace.evict(start + op, ii);
+    }
+
+    private int row(int t) {
+        return Math.floorMod(t, ii) * Microarchitecture.PIPELINE_WIDTH;
+    }
+
+    private int latency(int op) {
+        return program.get(start + op).getLatency();
+    }
+
+    private int countLoopEdges(DependencyGraph graph, int consumer) {
+        int count = 0;
+        for (int kind : LOOP_KINDS)
+            for (int e = graph.start(consumer, kind); e < graph.end(consumer, kind); e++)
+                if (graph.producer(e) >= start)
+                    count++;
+        return count;
+    }
+
+    /**
+     * What scheduling the loop took, over every II tried: placements include the forced ones, and every eviction
+     * undoes a placement.
+     */
+    static class Counters {
+        int attempts, placements, forced, evictions;
+    }
+}
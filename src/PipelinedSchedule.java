@@ -1,126 +1,125 @@
 import Instructions.*;
-import Microarchitecture.Microarchitecture;
+import Microarchitecture.RegisterAllocator;
+import Tracing.Trace;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class PipelinedSchedule extends Schedule {
     private int numberOfLoopStages;
-    private boolean collapsed;
+    // The stages of the loop body span [loopStartAddress, loopEndAddress) once it is placed, -1 until then
+    private int loopStartAddress = -1, loopEndAddress = -1;
+    private ModuloScheduler.Counters moduloCounters;
     public PipelinedSchedule(Instruction loopStart, Instruction loopEnd,
                              ArrayList<Instruction> program,
-                             ArrayList<InstructionDependency> deps) {
-        super(loopStart, loopEnd, program, deps);
-        collapsed = false;
+                             DependencyGraph deps,
+                             RegisterAllocator registers) {
+        super(loopStart, loopEnd, program, deps, registers);
+        // Start from an II the loop's recurrences allow
+        initiationInterval = initiationIntervalLowerBound = computeRecurrenceLowerBound(initiationInterval);
     }
 
     @Override
     public void scheduleInstruction(Instruction instruction) {
-        boolean validSchedule;
-        super.scheduleInstruction(instruction);
-        if (!(instruction instanceof Consumer))
+        // The whole loop body is modulo scheduled when its first instruction comes up
+        if (instruction == loopStart) {
+            scheduleLoop();
             return;
-        validSchedule = verifyInterloopDependencyInvariant((Consumer) instruction);
-        if (!validSchedule) {
-            reschedule(instruction);
         }
-//        System.out.printf("Scheduled %d%s:\n\n%s\n", instruction.getAddress(), instruction, this);
+        if (instruction.getAddress() >= getInitialLoopStartAddress() && instruction.getAddress() < getInitialLoopEndAddress())
+            return;
+        super.scheduleInstruction(instruction);
     }
 
-    @Override
-    protected boolean insertionLoop(Instruction instruction, int index) {
-        Bundle bundle;
-        boolean ok;
-
-//        System.out.printf("Attempting to insert %d%s at %d\n", instruction.getAddress(), instruction, index);
-
-        if (inLoop(instruction) && index >= bundles.size()) {
-            addLoopStage();
+    /**
+     * Modulo schedules the loop body and lays it out flat after BB0: an instruction issued at time t of its
+     * iteration goes to bundle loop start + t, so stage k of the loop occupies the k-th II bundles. Register
+     * allocation works on this layout, and collapseLoop folds it into the kernel.
+     */
+    private void scheduleLoop() {
+        int start = getInitialLoopStartAddress(), branch = getInitialLoopEndAddress() - 1;
+        int base = bundles.size();
+
+        // Operands produced in BB0 bound the earliest issue time of the first iteration
+        int[] earliest = new int[branch - start];
+        for (int c = start; c < branch; c++)
+            for (int e = dependencyGraph.start(c); e < dependencyGraph.end(c); e++)
+                if (dependencyGraph.producer(e) < start)
+                    earliest[c - start] = Math.max(earliest[c - start],
+                            producer(e).getScheduledAddress() + dependencyGraph.latency(e) - base);
+
+        ModuloScheduler scheduler = new ModuloScheduler(program, dependencyGraph, start, branch, earliest);
+        SchedulerEvents.LoopLayout event = new SchedulerEvents.LoopLayout();
+        event.begin();
+        initiationInterval = scheduler.schedule(initiationInterval);
+        moduloCounters = scheduler.getCounters();
+        if (event.shouldCommit()) {
+            event.loopStart = start;
+            event.operations = branch - start;
+            event.lowerBound = initiationIntervalLowerBound;
+            event.initiationInterval = initiationInterval;
+            event.stages = scheduler.getStages();
+            event.commit();
         }
 
-        while (index >= bundles.size()) {
+        while (bundles.size() < base + scheduler.getStages() * initiationInterval)
             addBundle();
-        }
-
-        bundle = bundles.get(index);
-        ok = bundle.insertIntoSlot(instruction);
-
-        if (!ok)
-            return false;
-
-        markReserved(instruction);
-        return true;
+        loopStartAddress = base;
+        loopEndAddress = bundles.size();
+        for (Instruction i : program.subList(start, branch))
+            if (!(i instanceof Nop))
+                bundles.get(base + scheduler.getTime(i.getAddress())).insertIntoSlot(i, scheduler.getSlot(i.getAddress()));
+        insertBranch((Branch) program.get(branch));
     }
 
-    private void markReserved(Instruction instruction) {
-        if (collapsed)
-            return;
-
-        if (!inLoop(instruction))
-            return;
-
-        Instruction o = getNextToReserve(instruction);
-        while (o != instruction) {
-            assert o instanceof Nop;
-            ((Nop) o).markReserved();
-//            System.out.printf("\tMarking bundle %d slot %d reserved\n", o.getScheduledAddress(), o.getScheduledSlot());
-            o = getNextToReserve(o);
+    @Override
+    protected boolean insertionLoop(Instruction instruction, int index) {
+        while (index >= bundles.size()) {
+            addBundle();
         }
+        return bundles.get(index).insertIntoSlot(instruction);
     }
 
-    private Instruction getNextToReserve(Instruction c) {
-        int next = c.getScheduledAddress() + initiationInterval;
-
-        if (next >= (loopEndAdded ? getLoopEndScheduledAddress() : bundles.size())) {
-            int lStart = getLoopStartAddress();
-            next = (next - lStart) % ((loopEndAdded ? getLoopEndScheduledAddress() : bundles.size()) - lStart) + lStart;
-        }
-
-        return bundles.get(next).getBundle().get(c.getScheduledSlot());
+    @Override
+    protected int getEarliestSlot(Instruction i) {
+        // Nothing after the loop may be placed back into its stages
+        return Math.max(super.getEarliestSlot(i), loopEndAddress);
     }
 
-    private void addLoopStage() {
-        for (int i = 0; i < initiationInterval; i++)
-            pushDownLoopEnd();
-        propagateReserved();
+    @Override
+    protected void insertBubbleBundle(int index) {
+        super.insertBubbleBundle(index);
+        if (loopStartAddress >= 0 && index <= loopStartAddress)
+            loopStartAddress++;
+        if (loopEndAddress >= 0 && index < loopEndAddress)
+            loopEndAddress++;
     }
 
-    private void propagateReserved() {
-        bundles.subList(getLoopStartAddress(), loopEndAdded ? getLoopEndScheduledAddress() : bundles.size())
-                .forEach(b -> b.getBundle().forEach(i -> {
-                    if (!(i instanceof Nop)) markReserved(i);
-                }));
+    @Override
+    protected int getLoopStartAddress() {
+        return loopStartAddress >= 0 ? loopStartAddress : super.getLoopStartAddress();
     }
 
-    private void reschedule(Instruction end) {
-        initiationInterval += 1;
-        bundles = new ArrayList<>(bundles.subList(0, getLoopStartAddress()));
-        loopEndAdded = false;
-        program.subList(loopStart.getAddress(), end.getAddress()+1).forEach(this::scheduleInstruction);
+    @Override
+    protected int getLoopEndScheduledAddress() {
+        return loopEndAddress >= 0 ? loopEndAddress : super.getLoopEndScheduledAddress();
     }
 
-    private boolean inLoop(Instruction i) {
-        return i.getScheduledAddress() >= getLoopStartAddress() && (i.getScheduledAddress() < getLoopEndScheduledAddress() || !loopEndAdded);
+    @Override
+    public int getLoopStages() {
+        return numberOfLoopStages;
     }
 
-    private boolean verifyInterloopDependencyInvariant(Consumer c) {
-        for (Producer p : dependencyMatrix.get(c.getAddress()).getInterloopDependencies()) {
-            // TODO: remove?
-            if (p.getScheduledAddress() > c.getScheduledAddress())
-                continue;
-            if (!interloopDependencyInvariant(p, c)) {
-//                System.out.printf("%d%s made %d%s be scheduled in wrong bundle\n", p.getAddress(), p, c.getAddress(), c);
-                return false;
-            }
-        }
-
-        return true;
+    /**
+     * @return the work the modulo scheduler did on the loop body, or null if there is no loop
+     */
+    ModuloScheduler.Counters getModuloCounters() {
+        return moduloCounters;
     }
 
-    private boolean interloopDependencyInvariant(Instruction p, Instruction c) {
-        return p.getScheduledAddress() + p.getLatency() <= c.getScheduledAddress() + initiationInterval;
+    private boolean inLoop(Instruction i) {
+        return i.getScheduledAddress() >= getLoopStartAddress() && i.getScheduledAddress() < getLoopEndScheduledAddress();
     }
 
     /* Register allocation */
@@ -129,13 +128,17 @@ public class PipelinedSchedule extends Schedule {
     public void allocateRegisters() {
         numberOfLoopStages = computeNumberOfLoopStages();
         allocateFreshRotatingLoopRegisters();
-//        System.out.printf("Allocated fresh produced registers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Allocated fresh produced registers", this);
         allocateLoopInvariantSimpleRegisters();
-//        System.out.printf("Allocated loop invariant registers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Allocated loop invariant registers", this);
         mapLoopBodyConsumers();
-//        System.out.printf("Mapped loop body consumers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Mapped loop body consumers", this);
         mapRemainingRegisters();
-//        System.out.printf("Allocated remaining registers in BB0 and BB2:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Allocated remaining registers in BB0 and BB2", this);
     }
 
     private int computeNumberOfLoopStages() {
@@ -146,43 +149,54 @@ public class PipelinedSchedule extends Schedule {
 
     private void allocateFreshRotatingLoopRegisters() {
         bundles.subList(getLoopStartAddress(), getLoopEndScheduledAddress()).forEach(b ->
-                b.getBundle().stream().filter(i -> i instanceof Producer).forEach(p -> {
-                    int fresh = Microarchitecture.getFreshRotatingRegister(numberOfLoopStages);
+                b.stream().filter(i -> i instanceof Producer).forEach(p -> {
+                    int fresh = registers.getFreshRotatingRegister(numberOfLoopStages);
                     ((Producer) p).setMappedDestination(fresh);
                 }));
     }
 
     private void allocateLoopInvariantSimpleRegisters() {
-        ArrayList<Producer> deps = new ArrayList<>();
-        dependencyMatrix.forEach(d -> d.getLoopInvariantDependencies().stream().filter(i -> !deps.contains(i)).forEach(deps::add));
-        deps.forEach(p -> {
-            int fresh = Microarchitecture.getFreshSimpleRegister();
-            p.setMappedDestination(fresh);
-        });
+        // Every loop invariant producer gets a register once, in the order of its first use
+        boolean[] allocated = new boolean[program.size()];
+        for (int c = 0; c < dependencyGraph.size(); c++)
+            for (int e = dependencyGraph.start(c, DependencyGraph.LOOP_INVARIANT);
+                 e < dependencyGraph.end(c, DependencyGraph.LOOP_INVARIANT); e++) {
+                if (allocated[dependencyGraph.producer(e)])
+                    continue;
+                allocated[dependencyGraph.producer(e)] = true;
+                producer(e).setMappedDestination(registers.getFreshSimpleRegister());
+            }
     }
 
     private void mapLoopBodyConsumers() {
         bundles.subList(getLoopStartAddress(), getLoopEndScheduledAddress())
-                .forEach(b -> b.getBundle().stream().filter(Instruction::isTrueConsumer)
+                .forEach(b -> b.stream().filter(Instruction::isTrueConsumer)
                         .forEach(i -> {
                                 Consumer c = (Consumer)i;
-                                InstructionDependency deps = dependencyMatrix.get(c.getAddress());
+                                int address = i.getAddress();
 
                                 // Loop invariants
-                                deps.getLoopInvariantDependencies().forEach(p ->
-                                        matchAndRemapConsumer(c, p.getDestination(), p.getMappedDestination()));
+                                for (int e = dependencyGraph.start(address, DependencyGraph.LOOP_INVARIANT);
+                                     e < dependencyGraph.end(address, DependencyGraph.LOOP_INVARIANT); e++) {
+                                        Producer p = producer(e);
+                                        matchAndRemapConsumer(c, p.getDestination(), p.getMappedDestination());
+                                }
 
                                 // Local dependencies
-                                deps.getLocalDependencies().forEach(p -> {
+                                for (int e = dependencyGraph.start(address, DependencyGraph.LOCAL);
+                                     e < dependencyGraph.end(address, DependencyGraph.LOCAL); e++) {
+                                        Producer p = producer(e);
                                         int diff = calculateLoopStageDiff(c, p);
                                         matchAndRemapConsumer(c, p.getDestination(), p.getMappedDestination()+diff);
-                                });
+                                }
 
                                 // Interloop dependencies
-                                deps.getInterloopDependencies().forEach(p -> {
+                                for (int e = dependencyGraph.start(address, DependencyGraph.INTERLOOP);
+                                     e < dependencyGraph.end(address, DependencyGraph.INTERLOOP); e++) {
+                                        Producer p = producer(e);
                                         int diff = calculateLoopStageDiff(c, p);
                                         matchAndRemapConsumer(c, p.getDestination(), p.getMappedDestination()+diff+1);
-                                });
+                                }
                         })
 
                 );
@@ -190,16 +204,19 @@ public class PipelinedSchedule extends Schedule {
 
     private void mapRemainingRegisters() {
         resolveBasicBlockZeroInterloopProducers();
-//        System.out.printf("Resolved basic block zero interloop producers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Resolved basic block zero interloop producers", this);
         resolveBasicBlockLocalDependencies(new ArrayList<>(bundles.subList(0, getLoopStartAddress())));
         resolveBasicBlockLocalDependencies(new ArrayList<>(bundles.subList(getLoopEndScheduledAddress(), bundles.size())));
-//        System.out.printf("Resolved basic block local dependencies:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Resolved basic block local dependencies", this);
         resolvePostLoopDependencies();
-//        System.out.printf("Resolved post loop dependencies:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Resolved post loop dependencies", this);
         resolveBasicBlockInvariants(new ArrayList<>(bundles.subList(0, getLoopStartAddress())));
         resolveBasicBlockInvariants(new ArrayList<>(bundles.subList(getLoopEndScheduledAddress(), bundles.size())));
-//        System.out.printf("Resolved basic block invariants:\n%s\n", this);
-//        System.out.printf("Allocated independent instructions:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Resolved basic block invariants", this);
         allocateIndependentRegisters();
         allocatePostLoopIndependentRegisters();
     }
@@ -220,16 +237,12 @@ public class PipelinedSchedule extends Schedule {
 
     private void resolveBasicBlockZeroInterloopProducers() {
         // BB0 registers that are interloop dependencies
-        ArrayList<Producer> interloopDeps = getDistinctInterloopDependencies();
-//        System.out.printf("Distinct interloop dependencies: %s\n", interloopDeps.toString());
+        Set<Producer> interloopDeps = getDistinctInterloopDependencies();
 
         // For each instruction in BB0...
         bundles.subList(0, getLoopStartAddress()).forEach(b ->
-                b.getBundle().stream().filter(i -> i instanceof Producer).forEach(p -> {
-//                    System.out.printf("Looking if %d%s is an interloop dependency\n", p.getAddress(), p);
-                    interloopDeps.stream().filter(i -> i == p).forEach(i -> {
-//                        System.out.printf("\tFor %d%s, found our register to be an interloop dependent register\n",
-//                                p.getAddress(), p, i.getAddress(), i);
+                b.stream().filter(i -> i instanceof Producer).forEach(p -> {
+                    if (interloopDeps.contains(p)) {
 
                         // ... that is also produced in the loop
                         Optional<Producer> opt = getLoopProducers().stream()
@@ -241,15 +254,17 @@ public class PipelinedSchedule extends Schedule {
 
                         int loopStage = getLoopStageOfInstruction(opt.get());
                         int mappedAddress = (opt.get().getMappedDestination() - loopStage) + 1;
-//                        System.out.printf("\tFound instruction: %d%s\n", opt.get().getAddress(), opt.get());
-//                        System.out.printf("\tSetting mapped register to x%d(%d, %d)\n", opt.get().getMappedDestination(), 1, -loopStage);
                         ((Producer)p).setMappedDestination(mappedAddress);
-                    });
+                    }
         }));
     }
 
     private int getLoopStageOfInstruction(Instruction instruction) {
-        return (instruction.getScheduledAddress() - getLoopStartAddress()) / initiationInterval;
+        return getLoopStageOfAddress(instruction.getScheduledAddress());
+    }
+
+    private int getLoopStageOfAddress(int address) {
+        return (address - getLoopStartAddress()) / initiationInterval;
     }
 
     private int calculateLoopStageDiff(Instruction i2, Instruction i1) {
@@ -259,7 +274,7 @@ public class PipelinedSchedule extends Schedule {
     private ArrayList<Producer> getLoopProducers() {
         ArrayList<Producer> producers = new ArrayList<>();
         bundles.subList(getLoopStartAddress(), getLoopEndScheduledAddress())
-                .forEach(b -> b.getBundle().stream()
+                .forEach(b -> b.stream()
                         .filter(i -> i instanceof Producer)
                         .map(p -> (Producer)p).forEach(producers::add));
         return producers;
@@ -267,53 +282,57 @@ public class PipelinedSchedule extends Schedule {
 
     private void resolveBasicBlockLocalDependencies(ArrayList<Bundle> bb) {
         // Allocate fresh registers to producers and map the consumed ones
-        bb.forEach(b -> b.getBundle().stream().filter(i -> i instanceof Consumer).forEach(c ->
-                dependencyMatrix.get(c.getAddress()).getLocalDependencies().forEach(p -> {
+        bb.forEach(b -> b.stream().filter(i -> i instanceof Consumer).forEach(c -> {
+            for (int e = dependencyGraph.start(c.getAddress(), DependencyGraph.LOCAL);
+                 e < dependencyGraph.end(c.getAddress(), DependencyGraph.LOCAL); e++) {
+                            Producer p = producer(e);
                             Consumer consumer = (Consumer) c;
-                            int fresh = Microarchitecture.getFreshSimpleRegister();
+                            int fresh = registers.getFreshSimpleRegister();
                             p.setMappedDestination(fresh);
 
                             if (consumer.getOperandA() == p.getDestination())
                                 consumer.setOperandA(fresh);
 
                             if (!(consumer instanceof DoubleConsumer))
-                                return;
+                                continue;
 
                             if (((DoubleConsumer)c).getOperandB() == p.getDestination())
                                 ((DoubleConsumer)c).setOperandB(fresh);
 
-//                            System.out.printf("Allocated fresh register to %d%s\n", p.getAddress(), p);
-
-                        })));
+            }
+        }));
     }
 
     private void resolvePostLoopDependencies() {
-        bundles.subList(getLoopEndScheduledAddress(), bundles.size()).forEach(b -> b.getBundle().stream()
+        bundles.subList(getLoopEndScheduledAddress(), bundles.size()).forEach(b -> b.stream()
                 .filter(i -> i instanceof Consumer).forEach(c -> {
-                    if (dependencyMatrix.get(c.getAddress()).getPostLoopDependencies().stream().anyMatch(d -> d.getDestination() == ((Consumer) c).getOperandA())) {
+                    if (dependencyGraph.dependsOn(c.getAddress(), DependencyGraph.POST_LOOP,
+                            ((Consumer) c).getOperandA())) {
                         Producer producer = getMostRecentProducer(c.getAddress(), ((Consumer) c).getOperandA());
-                        int dest = producer.getMappedDestination() + calculateLoopStageDiff(bundles.get(getLoopEndScheduledAddress()-1).getBundle().get(0), producer);
-//                        System.out.printf("Got producer of %d%s A from %d%s with loop stage diff %d. Setting operand A to x%d\n", c.getAddress(), c, producer.getAddress(), producer, calculateLoopStageDiff(bundles.get(getLoopEndAddress()-1).getBundle().get(0), producer), dest);
+                        int dest = producer.getMappedDestination() + getLoopStageOfAddress(getLoopEndScheduledAddress()-1) - getLoopStageOfInstruction(producer);
                         ((Consumer) c).setOperandA(dest);
                     }
 
                     if (!(c instanceof DoubleConsumer))
                         return;
 
-                    if (dependencyMatrix.get(c.getAddress()).getPostLoopDependencies().stream().anyMatch(d -> d.getDestination() == ((DoubleConsumer) c).getOperandB())) {
+                    if (dependencyGraph.dependsOn(c.getAddress(), DependencyGraph.POST_LOOP,
+
+                            ((DoubleConsumer) c).getOperandB())) {
                         Producer producer = getMostRecentProducer(c.getAddress(), ((DoubleConsumer) c).getOperandB());
-                        int dest = producer.getMappedDestination() + calculateLoopStageDiff(bundles.get(getLoopEndScheduledAddress()-1).getBundle().get(0), producer);
-//                        System.out.printf("Got producer of %d%s B from %d%s with loop stage diff %d. Setting operand B to x%d\n", c.getAddress(), c, producer.getAddress(), producer, calculateLoopStageDiff(bundles.get(getLoopEndAddress()-1).getBundle().get(0), producer), dest);
+                        int dest = producer.getMappedDestination() + getLoopStageOfAddress(getLoopEndScheduledAddress()-1) - getLoopStageOfInstruction(producer);
                         ((DoubleConsumer) c).setOperandB(dest);
                     }
                 }));
     }
 
     private void resolveBasicBlockInvariants(ArrayList<Bundle> bb) {
-        bb.forEach(b -> b.getBundle().stream()
+        bb.forEach(b -> b.stream()
                 .filter(i -> i instanceof Consumer).forEach(c -> {
 
-                    if (dependencyMatrix.get(c.getAddress()).getLoopInvariantDependencies().stream().anyMatch(d -> d.getDestination() == ((Consumer) c).getOperandA())) {
+                    if (dependencyGraph.dependsOn(c.getAddress(), DependencyGraph.LOOP_INVARIANT,
+
+                            ((Consumer) c).getOperandA())) {
                         Producer producer = getMostRecentProducer(c.getAddress(), ((Consumer) c).getOperandA());
                         ((Consumer) c).setOperandA(producer.getMappedDestination());
                     }
@@ -321,7 +340,9 @@ public class PipelinedSchedule extends Schedule {
                     if (!(c instanceof DoubleConsumer))
                         return;
 
-                    if (dependencyMatrix.get(c.getAddress()).getLoopInvariantDependencies().stream().anyMatch(d -> d.getDestination() == ((DoubleConsumer) c).getOperandB())) {
+                    if (dependencyGraph.dependsOn(c.getAddress(), DependencyGraph.LOOP_INVARIANT,
+
+                            ((DoubleConsumer) c).getOperandB())) {
                         Producer producer = getMostRecentProducer(c.getAddress(), ((DoubleConsumer) c).getOperandB());
                         ((DoubleConsumer) c).setOperandB(producer.getMappedDestination());
                     }
@@ -330,10 +351,10 @@ public class PipelinedSchedule extends Schedule {
     }
 
     private void allocateIndependentProducers() {
-        ArrayList<Producer> distinct = getDistinctDependencies();
-        bundles.forEach(b -> b.getBundle().stream().filter(i -> (i instanceof Producer)).forEach(p -> {
+        Set<Producer> distinct = getDistinctDependencies();
+        bundles.forEach(b -> b.stream().filter(i -> (i instanceof Producer)).forEach(p -> {
             if (!distinct.contains(p) && !((Producer) p).destinationIsRemapped()) {
-                int fresh = Microarchitecture.getFreshSimpleRegister();
+                int fresh = registers.getFreshSimpleRegister();
                 ((Producer) p).setMappedDestination(fresh);
             }
         }));
@@ -341,17 +362,14 @@ public class PipelinedSchedule extends Schedule {
 
     private void allocateIndependentRegisters() {
         HashSet<Integer> indep = getIndependentRegisters();
-//        System.out.printf("Independent registers: %s\n", indep);
-        bundles.forEach(b -> b.getBundle().stream().filter(i -> (!(i instanceof Nop)))
+        bundles.forEach(b -> b.stream()
                 .forEach(i -> {
-//                        System.out.printf("Mapped instruction %d%s to", i.getAddress(), i);
                         if (!inLoop(i) && i instanceof Producer && indep.contains(((Producer) i).getDestination()))
-                            ((Producer) i).setMappedDestination(Microarchitecture.getFreshSimpleRegister());
+                            ((Producer) i).setMappedDestination(registers.getFreshSimpleRegister());
                         if (i.isTrueConsumer() && indep.contains(((Consumer) i).getOperandA()))
-                            ((Consumer) i).setOperandA(Microarchitecture.getFreshSimpleRegister());
+                            ((Consumer) i).setOperandA(registers.getFreshSimpleRegister());
                         if (i instanceof DoubleConsumer && indep.contains(((DoubleConsumer) i).getOperandB()))
-                            ((DoubleConsumer) i).setOperandB(Microarchitecture.getFreshSimpleRegister());
-//                        System.out.printf(" %d%s\n", i.getAddress(), i);
+                            ((DoubleConsumer) i).setOperandB(registers.getFreshSimpleRegister());
         }));
     }
 
@@ -377,20 +395,23 @@ public class PipelinedSchedule extends Schedule {
     }
 
     private void allocatePostLoopIndependentRegisters() {
-        bundles.subList(getLoopEndScheduledAddress(), bundles.size()).forEach(b -> b.getBundle().stream()
+        bundles.subList(getLoopEndScheduledAddress(), bundles.size()).forEach(b -> b.stream()
                 .filter(i -> i instanceof Producer)
                 .forEach(p ->
-                    ((Producer)p).setMappedDestination(Microarchitecture.getFreshSimpleRegister())));
+                    ((Producer)p).setMappedDestination(registers.getFreshSimpleRegister())));
     }
 
     @Override
     public void prepareLoop() {
         addPredicates();
-//        System.out.printf("Added predicates:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Added predicates", this);
         collapseLoop();
-//        System.out.printf("Collapsed schedule:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Collapsed schedule", this);
         insertPrepareInstructions();
-//        System.out.printf("Inserted prepare instructions:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Inserted prepare instructions", this);
     }
 
     private void insertPrepareInstructions() {
@@ -403,7 +424,7 @@ public class PipelinedSchedule extends Schedule {
     private void forceScheduleInstruction(Instruction instruction) {
         Bundle b = bundles.get(instruction.getAddress());
         for (int i = 0; i < instruction.getPipelineSlots().length; i++) {
-            if (b.getBundle().get(i) instanceof Nop) {
+            if (b.isFree(i)) {
                 tryInsertFrom(instruction, b.getAddress(), this::insertionLoop);
                 return;
             }
@@ -413,32 +434,21 @@ public class PipelinedSchedule extends Schedule {
     }
 
     public void collapseLoop() {
-        collapsed = true;
-//        System.out.printf("Indices to collapse: %d -> %d\n", getLoopStartAddress() + initiationInterval, getLoopEndScheduledAddress());
         bundles.subList(getLoopStartAddress() + initiationInterval, getLoopEndScheduledAddress())
-                .forEach(b -> b.getBundle().stream()
-                        .filter(i -> !(i instanceof Nop))
-                        .forEach(i -> {
+                .forEach(b -> b.forEach(i -> {
                             int slot = i.getScheduledSlot();
                             int dest = (i.getScheduledAddress() - getLoopStartAddress()) % initiationInterval + getLoopStartAddress();
-                            assert bundles.get(dest).getBundle().get(slot) instanceof Nop;
-                            i.setScheduledAddress(dest);
-                            bundles.get(dest).getBundle().set(slot, i);
+                            assert bundles.get(dest).isFree(slot);
+                            bundles.get(dest).set(slot, i);
                         }));
         bundles.subList(getLoopStartAddress() + initiationInterval, getLoopEndScheduledAddress()).clear();
-        bundles.subList(getLoopStartAddress() + initiationInterval, bundles.size())
-                .forEach(b -> {
-                    AtomicInteger index = new AtomicInteger(getLoopStartAddress() + initiationInterval);
-                    b.getBundle().forEach(i -> i.setScheduledAddress(index.get()));
-                    b.setAddress(index.getAndIncrement());
-                });
     }
 
     private void addPredicates() {
         for (int i = getLoopStartAddress(); i < getLoopEndScheduledAddress(); i += initiationInterval) {
-            int pred = Microarchitecture.getFreshRotatingPredicate();
+            int pred = registers.getFreshRotatingPredicate();
             bundles.subList(i, i + initiationInterval)
-                    .forEach(b -> b.getBundle().stream()
+                    .forEach(b -> b.stream()
                             .filter(instr -> (instr instanceof Predicateable))
                             .forEach(p -> ((Predicateable) p).setPredicate(pred)
                             ));
@@ -0,0 +1,320 @@
+import Instructions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parses a program, a JSON array of instruction strings, in one pass over a channel. The text is read through a
+ * fixed buffer and every instruction string is decoded in a reused character buffer straight into an instruction,
+ * so the memory used is that of the instructions and not of the text. Only the immediates instructions print as
+ * written (addi and mov) are kept as strings.
+ *
+ * Errors are reported as IOExceptions giving the line and column in the input.
+ */
+class ProgramParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int END = -1;
+
+    private final ReadableByteChannel channel;
+    private final String source;
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    // Position of the next byte of the input
+    private int line = 1, column = 1;
+
+    // The instruction being decoded and the position of its opening quote
+    private char[] text = new char[64];
+    private CharBuffer view = CharBuffer.wrap(text);
+    private int length, cursor, address;
+    private int textLine, textColumn;
+
+    private ProgramParser(ReadableByteChannel channel, String source) {
+        this.channel = channel;
+        this.source = source;
+        input.flip();
+    }
+
+    static ArrayList<Instruction> parse(ReadableByteChannel channel, String source) throws IOException {
+        return new ProgramParser(channel, source).parseArray();
+    }
+
+    static ArrayList<Instruction> parse(Iterable<String> instructions, String source) throws IOException {
+        ProgramParser parser = new ProgramParser(null, source);
+        ArrayList<Instruction> program = new ArrayList<>();
+        for (String instruction : instructions) {
+            parser.length = 0;
+            for (int i = 0; i < instruction.length(); i++)
+                parser.append(instruction.charAt(i));
+            program.add(parser.decode(program.size()));
+        }
+        return program;
+    }
+
+    private ArrayList<Instruction> parseArray() throws IOException {
+        ArrayList<Instruction> program = new ArrayList<>();
+        int c = skipWhitespace();
+        if (c == END)
+            throw new IOException(String.format("%s: empty input", source));
+        expect(c, '[');
+        c = skipWhitespace();
+        if (c != ']') {
+            while (true) {
+                expect(c, '"');
+                readString();
+                program.add(decode(program.size()));
+                c = skipWhitespace();
+                if (c == ']')
+                    break;
+                expect(c, ',');
+                c = skipWhitespace();
+            }
+        }
+        c = skipWhitespace();
+        if (c != END)
+            throw syntaxError(String.format("unexpected '%c' after the instruction list", (char) c));
+        return program;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote was just read into the text buffer.
+     */
+    private void readString() throws IOException {
+        textLine = line;
+        textColumn = column - 1;
+        length = 0;
+        for (int c = read(); c != '"'; c = read()) {
+            if (c == END || c == '\n')
+                throw syntaxError("unterminated string");
+            if (c != '\\') {
+                append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case '"', '\\', '/' -> append((char) c);
+                case 'b' -> append('\b');
+                case 'f' -> append('\f');
+                case 'n' -> append('\n');
+                case 'r' -> append('\r');
+                case 't' -> append('\t');
+                case 'u' -> {
+                    int unit = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0)
+                            throw syntaxError("malformed unicode escape");
+                        unit = unit * 16 + digit;
+                    }
+                    append((char) unit);
+                }
+                default -> throw syntaxError("malformed escape");
+            }
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (!input.hasRemaining()) {
+            input.clear();
+            int read;
+            do {
+                read = channel.read(input);
+            } while (read == 0);
+            input.flip();
+            if (read < 0)
+                return END;
+        }
+        int c = input.get() & 0xff;
+        if (c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    private void expect(int c, char expected) throws IOException {
+        if (c != expected)
+            throw syntaxError(c == END ? String.format("expected '%c' before the end of the input", expected) :
+                    String.format("expected '%c' but found '%c'", expected, (char) c));
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(String.format("%s:%d:%d: %s", source, line, column - 1, message));
+    }
+
+    private void append(char c) {
+        if (length == text.length) {
+            text = Arrays.copyOf(text, length * 2);
+            view = CharBuffer.wrap(text);
+        }
+        text[length++] = c;
+    }
+
+    /**
+     * Decodes the text buffer into the instruction at the address. Operands are separated by commas and spaces.
+     */
+    private Instruction decode(int address) throws IOException {
+        this.address = address;
+        cursor = 0;
+        skipSeparators();
+        int mnemonic = cursor;
+        while (cursor < length && text[cursor] != ' ')
+            cursor++;
+        int mnemonicEnd = cursor;
+
+        Instruction instruction;
+        if (is(mnemonic, mnemonicEnd, "add"))
+            instruction = new Add(address, register(), register(), register());
+        else if (is(mnemonic, mnemonicEnd, "sub"))
+            instruction = new Sub(address, register(), register(), register());
+        else if (is(mnemonic, mnemonicEnd, "mulu"))
+            instruction = new Mulu(address, register(), register(), register());
+        else if (is(mnemonic, mnemonicEnd, "addi"))
+            instruction = new Addi(address, register(), register(), immediateText());
+        else if (is(mnemonic, mnemonicEnd, "ld")) {
+            int destination = register(), offset = immediate();
+            instruction = new Ld(address, destination, offset, baseRegister());
+        } else if (is(mnemonic, mnemonicEnd, "st")) {
+            int consumed = register(), offset = immediate();
+            instruction = new St(address, consumed, offset, baseRegister());
+        } else if (is(mnemonic, mnemonicEnd, "mov"))
+            instruction = decodeMov(address);
+        else if (is(mnemonic, mnemonicEnd, "loop"))
+            instruction = new Loop(address, immediate());
+        else if (is(mnemonic, mnemonicEnd, "loop.pip"))
+            instruction = new LoopPip(address, immediate());
+        else if (is(mnemonic, mnemonicEnd, "nop"))
+            instruction = new Nop(address);
+        else
+            throw decodeError(mnemonic, "unknown instruction");
+
+        skipSeparators();
+        if (cursor < length)
+            throw decodeError(cursor, "unexpected operand");
+        return instruction;
+    }
+
+    private Instruction decodeMov(int address) throws IOException {
+        skipSeparators();
+        if (cursor < length && text[cursor] == 'p') {
+            cursor++;
+            int destination = number(10);
+            skipSeparators();
+            // The value keeps its text, less a predicate prefix
+            if (cursor < length && text[cursor] == 'p')
+                cursor++;
+            return new MovP(address, destination, token());
+        }
+        if (cursor + 1 < length && (text[cursor] == 'L' || text[cursor] == 'E') && text[cursor + 1] == 'C') {
+            String counter = text[cursor] == 'L' ? "LC" : "EC";
+            cursor += 2;
+            return new MovLoop(address, counter, immediate());
+        }
+        int destination = register();
+        skipSeparators();
+        if (cursor < length && text[cursor] == 'x')
+            return new Mov(address, destination, register());
+        return new Movi(address, destination, immediateText());
+    }
+
+    private int register() throws IOException {
+        skipSeparators();
+        if (cursor < length && text[cursor] == 'x')
+            cursor++;
+        return number(10);
+    }
+
+    /**
+     * The (xN) after the offset of a memory operand.
+     */
+    private int baseRegister() throws IOException {
+        if (cursor >= length || text[cursor] != '(')
+            throw decodeError(cursor, "expected '('");
+        cursor++;
+        int register = register();
+        if (cursor >= length || text[cursor] != ')')
+            throw decodeError(cursor, "expected ')'");
+        cursor++;
+        return register;
+    }
+
+    /**
+     * A decimal or 0x prefixed hexadecimal immediate.
+     */
+    private int immediate() throws IOException {
+        skipSeparators();
+        if (cursor + 1 < length && text[cursor] == '0' && (text[cursor + 1] == 'x' || text[cursor + 1] == 'X')) {
+            cursor += 2;
+            return number(16);
+        }
+        return number(10);
+    }
+
+    private String immediateText() throws IOException {
+        skipSeparators();
+        int start = cursor;
+        immediate();
+        return new String(text, start, cursor - start);
+    }
+
+    private int number(int radix) throws IOException {
+        int start = cursor;
+        if (cursor < length && (text[cursor] == '-' || text[cursor] == '+'))
+            cursor++;
+        while (cursor < length && Character.digit(text[cursor], radix) >= 0)
+            cursor++;
+        try {
+            return Integer.parseInt(view, start, cursor, radix);
+        } catch (NumberFormatException e) {
+            throw decodeError(start, "expected a number");
+        }
+    }
+
+    private String token() throws IOException {
+        int start = cursor;
+        while (cursor < length && text[cursor] != ' ' && text[cursor] != ',')
+            cursor++;
+        if (start == cursor)
+            throw decodeError(start, "missing operand");
+        return new String(text, start, cursor - start);
+    }
+
+    private void skipSeparators() {
+        while (cursor < length && (text[cursor] == ' ' || text[cursor] == ','))
+            cursor++;
+    }
+
+    private boolean is(int start, int end, String mnemonic) {
+        if (end - start != mnemonic.length())
+            return false;
+        for (int i = 0; i < mnemonic.length(); i++)
+            if (text[start + i] != mnemonic.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * @param at offset in the instruction text where the problem is
+     */
+    private IOException decodeError(int at, String message) {
+        String instruction = new String(text, 0, length);
+        if (channel == null)
+            return new IOException(String.format("%s: instruction %d, column %d: %s in '%s'",
+                    source, address, at + 1, message, instruction));
+        // Instructions hardly ever hold escapes, so the offset in the text is taken as the offset in the line
+        return new IOException(String.format("%s:%d:%d: instruction %d: %s in '%s'",
+                source, textLine, textColumn + 1 + at, address, message, instruction));
+    }
+}
@@ -0,0 +1,222 @@
+import Instructions.Instruction;
+import Microarchitecture.RegisterAllocator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how the time and memory of every scheduler phase grow with the size of the program, on generated
+ * kernels from a thousand up to a million instructions.
+ *
+ * For every size and phase the harness reports the wall time, the bytes allocated, the heap the phase's result
+ * keeps alive and the growth exponent against the previous size: about 1 for a phase that scales linearly, about
+ * 2 for a quadratic one. A phase whose time, extrapolated from the previous sizes, would exceed the time budget
+ * is skipped from then on, together with the phases that depend on it.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./scaling.sh --sizes 1000,10000,100000 --budget-s 30 --csv scaling.csv
+ */
+public class Scaling {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int[] sizes = {1_000, 2_000, 4_000, 8_000, 16_000, 32_000, 64_000, 128_000, 256_000, 512_000, 1_000_000};
+    private double loopShare = 0.5;
+    private long budgetMillis = 60_000;
+    private String csv = null;
+    private final KernelGenerator template = new KernelGenerator();
+
+    private final Map<String, Sample> previous = new HashMap<>();
+    private final List<Sample> samples = new ArrayList<>();
+    private Path dumpTarget;
+
+    public static void main(String[] args) throws IOException {
+        Scaling scaling = new Scaling();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--sizes" -> scaling.sizes = Arrays.stream(args[++i].split(","))
+                            .mapToInt(Integer::parseInt).toArray();
+                    case "--loop-share" -> scaling.loopShare = Double.parseDouble(args[++i]);
+                    case "--budget-s" -> scaling.budgetMillis = Long.parseLong(args[++i]) * 1000;
+                    case "--csv" -> scaling.csv = args[++i];
+                    case "--seed" -> scaling.template.seed = Long.parseLong(args[++i]);
+                    case "--density" -> scaling.template.density = Double.parseDouble(args[++i]);
+                    case "--mulu" -> scaling.template.muluShare = Double.parseDouble(args[++i]);
+                    case "--ld" -> scaling.template.ldShare = Double.parseDouble(args[++i]);
+                    case "--st" -> scaling.template.stShare = Double.parseDouble(args[++i]);
+                    case "--recurrences" -> scaling.template.recurrences = Integer.parseInt(args[++i]);
+                    default -> throw new IllegalArgumentException(String.format("unknown option '%s'", args[i]));
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.printf("%s\n", e.getMessage());
+            System.out.print("usage: java Scaling [--sizes n,...] [--loop-share p] [--budget-s s] [--csv path] " +
+                    "[--seed n] [--density p] [--mulu p] [--ld p] [--st p] [--recurrences n]\n");
+            System.exit(0);
+        }
+        scaling.run();
+    }
+
+    private void run() throws IOException {
+        dumpTarget = Files.createTempFile("scaling", ".json");
+        System.out.printf("%-30s %9s %12s %12s %12s %9s\n",
+                "phase", "size", "ms", "alloc MB", "retained MB", "exponent");
+        try {
+            warmUp();
+            for (int size : sizes)
+                measure(size);
+        } finally {
+            Files.deleteIfExists(dumpTarget);
+        }
+
+        if (csv != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(csv))) {
+                writer.println("size,phase,status,ms,allocated_bytes,retained_bytes,exponent");
+                for (Sample s : samples)
+                    writer.printf("%d,%s,%s,%.3f,%d,%d,%s\n", s.size, s.phase, s.status, s.nanos / 1e6,
+                            s.allocated, s.retained, Double.isNaN(s.exponent) ? "" : String.format("%.2f", s.exponent));
+            }
+        }
+    }
+
+    /**
+     * Gets the scheduler compiled before the first measurement, so the smallest sizes do not time the interpreter.
+     */
+    private void warmUp() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            AnalyzedProgram analyzed = Scheduler.analyze(
+                    IO.parseProgram(KernelGenerator.ofSize(500, 250, i).toJson(), "warm-up"));
+            IO.dump(Scheduler.schedule(analyzed, false, new RegisterAllocator()), dumpTarget.toString());
+            IO.dump(Scheduler.schedule(analyzed, true, new RegisterAllocator()), dumpTarget.toString());
+        }
+    }
+
+    /**
+     * Runs every phase once on a kernel of the given size, each phase working on the result of the one before it.
+     */
+    private void measure(int size) {
+        KernelGenerator generator = KernelGenerator.ofSize(size, (int) (size * loopShare), template.seed);
+        generator.density = template.density;
+        generator.muluShare = template.muluShare;
+        generator.ldShare = template.ldShare;
+        generator.stShare = template.stShare;
+        generator.recurrences = template.recurrences;
+        String text = generator.toJson();
+        String source = String.format("kernel(%d)", size);
+
+        Object program = phase("parse", size, text, () -> IO.parseProgram(text, source));
+        Object analyzed = phase("analyze", size, program, () -> Scheduler.analyze(program(program), false));
+        phase("analyze.parallel", size, program, () -> Scheduler.analyze(program(program), true));
+        for (boolean pipelined : new boolean[]{false, true}) {
+            String backEnd = pipelined ? "pipelined" : "sequential";
+            Object placed = phase("place." + backEnd, size, analyzed, () ->
+                    Scheduler.placeInstructions((AnalyzedProgram) analyzed, pipelined, new RegisterAllocator()));
+            Object allocated = phase("allocateRegisters." + backEnd, size, placed, () -> {
+                ((Schedule) placed).allocateRegisters();
+                return placed;
+            });
+            Object prepared = !pipelined ? allocated : phase("prepareLoop", size, allocated, () -> {
+                ((Schedule) allocated).prepareLoop();
+                return allocated;
+            });
+            phase("dump." + backEnd, size, prepared, () -> {
+                IO.dump((Schedule) prepared, dumpTarget.toString());
+                return prepared;
+            });
+        }
+    }
+
+    /**
+     * Runs a single phase unless its input is missing or it is predicted to overrun the budget.
+     * @return the phase's result, or null if it was skipped or failed
+     */
+    private Object phase(String name, int size, Object input, Phase phase) {
+        Sample sample = new Sample(name, size);
+        Sample last = previous.get(name);
+        if (input == null) {
+            sample.status = "skipped";
+        } else if (last != null && predictNanos(last, size) > budgetMillis * 1_000_000) {
+            sample.status = "skipped";
+        }
+        if (sample.status != null)
+            return report(sample, null);
+
+        long thread = Thread.currentThread().getId();
+        long retained = usedHeap();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = phase.apply();
+        } catch (Exception | AssertionError | StackOverflowError | OutOfMemoryError e) {
+            sample.status = "failed";
+            System.err.printf("%s at size %d failed: %s\n", name, size, e);
+            return report(sample, null);
+        }
+        sample.nanos = System.nanoTime() - start;
+        sample.allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        sample.retained = Math.max(0, usedHeap() - retained);
+        sample.status = "ok";
+        if (last != null && last.nanos > 0)
+            sample.exponent = Math.log((double) sample.nanos / last.nanos) / Math.log((double) size / last.size);
+        previous.put(name, sample);
+        return report(sample, result);
+    }
+
+    /**
+     * Extrapolates a phase's time to a new size, assuming it keeps growing at least linearly.
+     */
+    private static double predictNanos(Sample last, int size) {
+        double exponent = Double.isNaN(last.exponent) ? 1 : Math.max(1, last.exponent);
+        return last.nanos * Math.pow((double) size / last.size, exponent);
+    }
+
+    private Object report(Sample s, Object result) {
+        samples.add(s);
+        if (s.status.equals("ok"))
+            System.out.printf("%-30s %9d %12.1f %12.1f %12.1f %9s\n", s.phase, s.size, s.nanos / 1e6,
+                    s.allocated / 1e6, s.retained / 1e6,
+                    Double.isNaN(s.exponent) ? "" : String.format("%.2f", s.exponent));
+        else
+            System.out.printf("%-30s %9d %12s\n", s.phase, s.size, s.status);
+        return result;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Instruction> program(Object program) {
+        return (ArrayList<Instruction>) program;
+    }
+
+    private interface Phase {
+        Object apply() throws Exception;
+    }
+
+    private static class Sample {
+        final String phase;
+        final int size;
+        String status;
+        long nanos, allocated, retained;
+        double exponent = Double.NaN;
+
+        Sample(String phase, int size) {
+            this.phase = phase;
+            this.size = size;
+        }
+    }
+}
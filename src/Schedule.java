@@ -1,22 +1,30 @@
 import Instructions.*;
 import Microarchitecture.Microarchitecture;
+import Microarchitecture.RegisterAllocator;
+import Tracing.Trace;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
 public abstract class Schedule {
-    protected ArrayList<Bundle> bundles;
+    protected final BundleList bundles;
     protected final Instruction loopStart;
     protected final Instruction loopEnd;
     protected final ArrayList<Instruction> program;
-    protected final ArrayList<InstructionDependency> dependencyMatrix;
+    protected final DependencyGraph dependencyGraph;
     protected int initiationInterval;
+    // The II the schedule started out from, and the bundles inserted on the way to the final one
+    protected int initiationIntervalLowerBound;
+    private int insertedBundles;
     protected boolean loopEndAdded;
     protected Branch branchInstruction;
+    protected final RegisterAllocator registers;
 
     public abstract void allocateRegisters();
     protected abstract boolean insertionLoop(Instruction instruction, int index);
@@ -29,8 +37,7 @@ public abstract class Schedule {
             return;
         }
 
-        InstructionDependency deps = dependencyMatrix.get(instruction.getAddress());
-        int lowerBound = getEarliestSlot(instruction, deps);
+        int lowerBound = getEarliestSlot(instruction);
         tryInsertFrom(instruction, lowerBound, this::insertionLoop);
     }
 
@@ -39,24 +46,47 @@ public abstract class Schedule {
             loopEndAdded = true;
         }
 
-        boolean ok;
-        int index = lb;
-        do {
-            ok = loopFunction.apply(instruction, index);
-            index += 1;
-        }
-        while(!ok);
+        // Addresses skipped over are ones the loop function would only have tried in vain
+        int slots = slotMask(instruction);
+        int index = nextCandidate(lb, slots);
+        while (!attempt(instruction, index, loopFunction))
+            index = nextCandidate(index + 1, slots);
+    }
+
+    private static boolean attempt(Instruction instruction, int index,
+                                   BiFunction<Instruction, Integer, Boolean> loopFunction) {
+        boolean placed = loopFunction.apply(instruction, index);
+        if (Trace.ENABLED)
+            Trace.attempt(instruction.getAddress(), index, placed);
+        return placed;
+    }
+
+    /**
+     * @return the first address at or after the given one where inserting an instruction that can take any of the
+     * slots may succeed
+     */
+    protected int nextCandidate(int index, int slots) {
+        return bundles.nextFree(index, slots);
+    }
+
+    private static int slotMask(Instruction instruction) {
+        int mask = 0;
+        for (int slot : instruction.getPipelineSlots())
+            mask |= 1 << slot;
+        return mask;
     }
 
     Schedule(Instruction loopStart, Instruction loopEnd,
              ArrayList<Instruction> program,
-             ArrayList<InstructionDependency> dependencyMatrix) {
+             DependencyGraph dependencyGraph,
+             RegisterAllocator registers) {
         this.loopStart = loopStart;
         this.loopEnd = loopEnd;
         this.program = program;
-        this.dependencyMatrix = dependencyMatrix;
-        this.initiationInterval = computeInitiationIntervalLowerBound();
-        bundles = new ArrayList<>();
+        this.dependencyGraph = dependencyGraph;
+        this.registers = registers;
+        this.initiationInterval = initiationIntervalLowerBound = computeInitiationIntervalLowerBound();
+        bundles = new BundleList();
         loopEndAdded = false;
     }
 
@@ -64,7 +94,31 @@ public abstract class Schedule {
         return initiationInterval;
     }
 
-    protected ArrayList<Bundle> get() {
+    public int getInitiationIntervalLowerBound() {
+        return initiationIntervalLowerBound;
+    }
+
+    /**
+     * @return the bundles from the start of the loop up to its branch, which is the II the finished schedule
+     * achieves, or 0 without a loop
+     */
+    public int getKernelLength() {
+        return branchInstruction == null ? 0 : branchInstruction.getScheduledAddress() - branchInstruction.getTarget() + 1;
+    }
+
+    public int getLoopStages() {
+        return containsLoop() ? 1 : 0;
+    }
+
+    public int getInsertedBundles() {
+        return insertedBundles;
+    }
+
+    public int size() {
+        return bundles.size();
+    }
+
+    protected List<Bundle> get() {
         return bundles;
     }
 
@@ -84,17 +138,16 @@ public abstract class Schedule {
         insertBubbleBundle(bundles.size());
     }
 
+    /**
+     * Inserts an empty bundle. Later bundles, and the instructions in them, move one address down by themselves.
+     */
     protected void insertBubbleBundle(int index) {
         if (index <= getLoopStartAddress() && branchInstruction != null) {
             branchInstruction.setTarget(branchInstruction.getTarget() + 1);
         }
 
-        bundles.subList(index, bundles.size()).forEach(b -> {
-            int newAddress = b.getAddress() + 1;
-            b.getBundle().forEach(i -> i.setScheduledAddress(newAddress));
-            b.setAddress(newAddress);
-        });
-        bundles.add(index, new Bundle(index));
+        bundles.add(index, new Bundle());
+        insertedBundles++;
     }
 
     protected void insertBranch(Branch branch) {
@@ -115,91 +168,166 @@ public abstract class Schedule {
     protected void pushDownLoopEnd() {
         int oldLoopEnd = loopEndAdded ? getLoopEndScheduledAddress() : bundles.size();
         insertBubbleBundle(oldLoopEnd);
-        if (loopEndAdded) loopEnd.setScheduledAddress(oldLoopEnd+1); // TODO: remove?
     }
 
+    /**
+     * Resource bound (ResMII): every functional unit class has to issue all of its loop instructions within an
+     * initiation interval, spread over as many slots as the class has. Nops fit any slot and bind no class.
+     */
     private int computeInitiationIntervalLowerBound() {
         int[] counts = new int[Microarchitecture.PIPELINE_WIDTH];
-        program.subList(getInitialLoopStartAddress(), getInitialLoopEndAddress())
-                .forEach(i -> counts[i.getPipelineSlots()[0]]++);
-        counts[0] = (int) Math.ceil((double) counts[0] / Microarchitecture.ALU_UNITS);
-        return Arrays.stream(counts).max().getAsInt();
+        program.subList(getInitialLoopStartAddress(), getInitialLoopEndAddress()).forEach(i -> {
+            if (!(i instanceof Nop))
+                counts[i.getPipelineSlots()[0]]++;
+        });
+        int bound = 0;
+        for (int[] slots : new int[][] {Microarchitecture.ALU_SLOTS, Microarchitecture.MUL_SLOTS,
+                Microarchitecture.MEM_SLOTS, Microarchitecture.BR_SLOTS})
+            bound = Math.max(bound, (counts[slots[0]] + slots.length - 1) / slots.length);
+        return bound;
+    }
+
+    /**
+     * Recurrence bound (RecMII): a consumer of an interloop dependency reads the value its producer wrote in the
+     * previous iteration, an initiation interval earlier. Every cycle of loop dependencies therefore needs
+     * II >= latency / iterations of the cycle, where interloop dependencies carry one iteration and local ones none.
+     *
+     * The bound is the smallest II, at least the given one, for which no cycle has positive latency - II *
+     * iterations. An II is checked by relaxing longest paths through the loop body in program order until they
+     * settle; a positive cycle shows up as a path longer than all loop latencies together.
+     */
+    protected int computeRecurrenceLowerBound(int from) {
+        int start = getInitialLoopStartAddress(), end = getInitialLoopEndAddress();
+        int latencies = 0;
+        for (int i = start; i < end; i++)
+            latencies += program.get(i).getLatency();
+        int low = from, high = Math.max(from, latencies);
+        if (hasPositiveCycle(start, end, low, latencies)) {
+            // The first II without a positive cycle lies in (low, high]
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (hasPositiveCycle(start, end, middle, latencies))
+                    low = middle;
+                else
+                    high = middle;
+            }
+            low = high;
+        }
+        return low;
+    }
+
+    private boolean hasPositiveCycle(int start, int end, int ii, int limit) {
+        long[] path = new long[end - start];
+        for (int round = 0; round <= end - start; round++) {
+            boolean changed = false;
+            for (int c = start; c < end; c++) {
+                long longest = path[c - start];
+                for (int e = dependencyGraph.start(c, DependencyGraph.LOCAL);
+                     e < dependencyGraph.end(c, DependencyGraph.LOCAL); e++)
+                    longest = Math.max(longest, path[dependencyGraph.producer(e) - start] + dependencyGraph.latency(e));
+                for (int e = dependencyGraph.start(c, DependencyGraph.INTERLOOP);
+                     e < dependencyGraph.end(c, DependencyGraph.INTERLOOP); e++)
+                    if (dependencyGraph.producer(e) >= start)
+                        longest = Math.max(longest,
+                                path[dependencyGraph.producer(e) - start] + dependencyGraph.latency(e) - ii);
+                if (longest > limit)
+                    return true;
+                if (longest > path[c - start]) {
+                    path[c - start] = longest;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                return false;
+        }
+        return true;
     }
 
     protected void moveLoopToEnd() {
         int loopSlot = Microarchitecture.BR_SLOTS[0];
         for (Bundle b : bundles)
-            for (Instruction i : b.getBundle())
+            for (Instruction i : b)
                 if (i instanceof Branch) {
-                    b.getBundle().set(loopSlot, new Nop(b.getAddress()));
+                    b.clear(loopSlot);
                     bundles.get(getLoopEndScheduledAddress()-1).insertIntoSlot(i);
                     return;
                 }
         assert false;
     }
 
-    protected int getEarliestSlot(Instruction i, InstructionDependency deps) {
+    protected int getEarliestSlot(Instruction i) {
         int lowerBound =
                 (!containsLoop()) ? 0 :
                         (i == loopStart || i == loopEnd) ? bundles.size() :
                                 (i.getAddress() < getLoopStartAddress()) ? 0 :
                                         (i.getAddress() <= getLoopEndScheduledAddress() || !loopEndAdded) ? getLoopStartAddress() :
                                                 getLoopEndScheduledAddress();
-        int latestDependency = deps.getAll().stream()
-                .filter(d -> i.getAddress() > d.getAddress() &&
-                        lowerBound < d.getAddress() + d.getLatency())
-                .mapToInt(d -> d.getScheduledAddress() + d.getLatency())
-                .max()
-                .orElse(0);
+        int latestDependency = 0;
+        for (int e = dependencyGraph.start(i.getAddress()); e < dependencyGraph.end(i.getAddress()); e++) {
+            int address = dependencyGraph.producer(e), latency = dependencyGraph.latency(e);
+            if (i.getAddress() > address && lowerBound < address + latency)
+                latestDependency = Math.max(latestDependency, producer(e).getScheduledAddress() + latency);
+        }
         return Math.max(latestDependency, lowerBound);
     }
 
     protected void allocateEarlierReaders() {
         bundles.forEach(b ->
-                b.getBundle().stream()
+                b.stream()
                         .filter(Instruction::isTrueConsumer)
                         .forEach(i -> {
                             if (!((Consumer)i).isOperandARemapped()) {
-                                ((Consumer) i).setOperandA(Microarchitecture.getFreshSimpleRegister());
+                                ((Consumer) i).setOperandA(registers.getFreshSimpleRegister());
                             }
                             if (!(i instanceof DoubleConsumer))
                                 return;
 
                             if (!((DoubleConsumer)i).isOperandBRemapped()) {
-                                ((DoubleConsumer) i).setOperandB(Microarchitecture.getFreshSimpleRegister());
+                                ((DoubleConsumer) i).setOperandB(registers.getFreshSimpleRegister());
                             }
                         })
         );
     }
 
-    protected ArrayList<Producer> getDistinctInterloopDependencies() {
-        ArrayList<Producer> interloopDeps = new ArrayList<>();
-        dependencyMatrix
-                .subList(getInitialLoopStartAddress(), getInitialLoopEndAddress())
-                .forEach(d -> d.getInterloopDependencies().stream()
-                        .filter(p -> p.getScheduledAddress() < getLoopStartAddress())
-                        .forEach(interloopDeps::add));
-        return interloopDeps.stream().collect(Collectors.collectingAndThen(
-                Collectors.toCollection(() -> new TreeSet<>(Comparator.comparing(Instruction::toString))),
-                ArrayList::new));
+    /**
+     * @return the BB0 producers of interloop dependencies, one for every distinct instruction among them
+     */
+    protected Set<Producer> getDistinctInterloopDependencies() {
+        HashMap<InstructionKey, Producer> distinct = new HashMap<>();
+        for (int c = getInitialLoopStartAddress(); c < getInitialLoopEndAddress(); c++)
+            for (int e = dependencyGraph.start(c, DependencyGraph.INTERLOOP);
+                 e < dependencyGraph.end(c, DependencyGraph.INTERLOOP); e++)
+                if (producer(e).getScheduledAddress() < getLoopStartAddress())
+                    distinct.putIfAbsent(producer(e).key(), producer(e));
+        return identitySet(distinct.values());
+    }
+
+    /**
+     * @return the producers of interloop dependencies, one for every distinct instruction among them
+     */
+    protected Set<Producer> getDistinctDependencies() {
+        HashMap<InstructionKey, Producer> distinct = new HashMap<>();
+        for (int c = 0; c < dependencyGraph.size(); c++)
+            for (int e = dependencyGraph.start(c, DependencyGraph.INTERLOOP);
+                 e < dependencyGraph.end(c, DependencyGraph.INTERLOOP); e++)
+                distinct.putIfAbsent(producer(e).key(), producer(e));
+        return identitySet(distinct.values());
     }
 
-    protected ArrayList<Producer> getDistinctDependencies() {
-        ArrayList<Producer> producers = new ArrayList<>();
-        dependencyMatrix.forEach(d -> producers.addAll(d.getInterloopDependencies()));
-        return producers.stream().collect(Collectors.collectingAndThen(
-                Collectors.toCollection(() -> new TreeSet<>(Comparator.comparing(Instruction::toString))),
-                ArrayList::new));
+    // A producer that prints like one already kept is not in the set itself
+    private static Set<Producer> identitySet(Collection<Producer> producers) {
+        Set<Producer> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(producers);
+        return set;
     }
 
-    protected void mapConsumed(ArrayList<Bundle> bundles) {
+    protected void mapConsumed(List<Bundle> bundles) {
         bundles.forEach(b ->
-                b.getBundle().stream()
-                        .filter(i -> i.isTrueConsumer() && !dependencyMatrix.get(i.getAddress()).getAll().isEmpty())
+                b.stream()
+                        .filter(i -> i.isTrueConsumer() && dependencyGraph.hasDependencies(i.getAddress()))
                         .forEach(c -> {
 
-                            if (dependencyMatrix.get(c.getAddress()).getAll().stream()
-                                    .anyMatch(d -> d.getDestination() == ((Consumer) c).getOperandA())) {
+                            if (dependsOn(c.getAddress(), ((Consumer) c).getOperandA())) {
                                 Producer producer = getMostRecentProducer(c.getAddress(), ((Consumer) c).getOperandA());
                                 ((Consumer) c).setOperandA(producer.getMappedDestination());
                             }
@@ -207,8 +335,7 @@ public abstract class Schedule {
                             if (!(c instanceof DoubleConsumer))
                                 return;
 
-                            if (dependencyMatrix.get(c.getAddress()).getAll().stream()
-                                    .anyMatch(d -> d.getDestination() == ((DoubleConsumer) c).getOperandB())) {
+                            if (dependsOn(c.getAddress(), ((DoubleConsumer) c).getOperandB())) {
                                 Producer producer = getMostRecentProducer(c.getAddress(), ((DoubleConsumer) c).getOperandB());
                                 ((DoubleConsumer) c).setOperandB(producer.getMappedDestination());
                             }
@@ -216,14 +343,36 @@ public abstract class Schedule {
     }
 
     protected Producer getMostRecentProducer(int consumerAddress, int register) {
-        ArrayList<Producer> producers = dependencyMatrix.get(consumerAddress).getAll().stream()
-                .filter(p -> p.getDestination() == register)
-                .sorted(Comparator.comparingInt(p -> {
-                    int diff = consumerAddress - p.getAddress();
-                    return diff <= 0 ? Integer.MAX_VALUE : diff;
-                }))
-                .collect(Collectors.toCollection(ArrayList::new));
-        return producers.get(0);
+        // The closest earlier producer wins; producers at or after the consumer only count if there is none
+        int mostRecent = -1, closest = Integer.MAX_VALUE;
+        for (int e = dependencyGraph.start(consumerAddress); e < dependencyGraph.end(consumerAddress); e++) {
+            if (dependencyGraph.destination(dependencyGraph.producer(e)) != register)
+                continue;
+            int diff = consumerAddress - dependencyGraph.producer(e);
+            int distance = diff <= 0 ? Integer.MAX_VALUE : diff;
+            if (mostRecent == -1 || distance < closest) {
+                mostRecent = e;
+                closest = distance;
+            }
+        }
+        return producer(mostRecent);
+    }
+
+    /**
+     * @return whether any producer the consumer depends on writes the register
+     */
+    protected boolean dependsOn(int consumerAddress, int register) {
+        for (int kind = 0; kind < DependencyGraph.KINDS; kind++)
+            if (dependencyGraph.dependsOn(consumerAddress, kind, register))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return this schedule's instance of the producer an edge of the dependency graph leads to
+     */
+    protected Producer producer(int edge) {
+        return (Producer) program.get(dependencyGraph.producer(edge));
     }
 
     @Override
@@ -234,11 +383,11 @@ public abstract class Schedule {
         return sb.toString();
     }
 
-    private int getInitialLoopStartAddress() {
+    protected int getInitialLoopStartAddress() {
         return loopStart == null ? program.size() : loopStart.getAddress();
     }
 
-    private int getInitialLoopEndAddress() {
+    protected int getInitialLoopEndAddress() {
         return loopEnd == null ? program.size() : loopEnd.getAddress();
     }
 }
@@ -0,0 +1,306 @@
+import Instructions.*;
+import Microarchitecture.Microarchitecture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Finished schedules of programs seen before, so a kernel that did not change skips analysis and scheduling. An
+ * entry holds the dumped loop and loop.pip documents and is found by a hash of the program's parsed fields, together
+ * with the machine from Microarchitecture and a version of the schedulers; bump SCHEDULER_VERSION whenever a change
+ * to them alters their output.
+ *
+ * Entries live in a directory, one file each, and the least recently used files are deleted once the directory
+ * outgrows its budget. Recently used entries are also kept in memory, so a batch run or the server finds repeated
+ * kernels without reading them back.
+ *
+ * The cache is off unless SCHEDULE_CACHE names its directory; SCHEDULE_CACHE_MB bounds its size on disk.
+ */
+class ScheduleCache {
+    private static final int SCHEDULER_VERSION = 3;
+    private static final long DEFAULT_DISK_MB = 256;
+    private static final long MEMORY_BYTES = 64L << 20;
+    private static final String SUFFIX = ".schedule";
+
+    private final Path directory;
+    private final long diskBudget;
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private final Map<String, MemoryEntry> memory = new ConcurrentHashMap<>();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    private final AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong(), failedStores = new AtomicLong();
+
+    ScheduleCache(Path directory, long diskBudget) throws IOException {
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+        Files.createDirectories(directory);
+        try (Stream<Path> entries = entries()) {
+            diskBytes.set(entries.mapToLong(ScheduleCache::size).sum());
+        }
+    }
+
+    /**
+     * @return the cache configured by the environment, or null if there is none
+     */
+    static ScheduleCache fromEnvironment() throws IOException {
+        String directory = System.getenv("SCHEDULE_CACHE");
+        if (directory == null || directory.isEmpty())
+            return null;
+        String megabytes = System.getenv("SCHEDULE_CACHE_MB");
+        long budget = megabytes == null ? DEFAULT_DISK_MB : Long.parseLong(megabytes);
+        return new ScheduleCache(Paths.get(directory), budget << 20);
+    }
+
+    /**
+     * @return the key of a program as parsed, before anything is scheduled
+     */
+    static String key(List<Instruction> program) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(SCHEDULER_VERSION)
+                .append(' ').append(Microarchitecture.ALU_UNITS).append(' ').append(Microarchitecture.MUL_UNITS)
+                .append(' ').append(Microarchitecture.MEM_UNITS).append(' ').append(Microarchitecture.BR_UNITS)
+                .append(' ').append(Microarchitecture.PIPELINE_WIDTH).append(' ').append(Microarchitecture.REGISTERS)
+                .append('\n');
+        for (Instruction i : program) {
+            appendFields(i, text);
+            text.append('\n');
+            if (text.length() >= 4096) {
+                digest.update(text.toString().getBytes(StandardCharsets.UTF_8));
+                text.setLength(0);
+            }
+        }
+        digest.update(text.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return key.toString();
+    }
+
+    /**
+     * Writes the fields an instruction was parsed with. These are hashed rather than its printed form, which shows
+     * mapped registers and so depends on what was set up before scheduling.
+     */
+    private static void appendFields(Instruction i, StringBuilder text) {
+        text.append(i.getClass().getSimpleName());
+        if (i instanceof Predicateable)
+            text.append(" p").append(((Predicateable) i).getPredicate());
+        if (i instanceof Producer)
+            text.append(" d").append(((Producer) i).getDestination());
+        if (i instanceof Consumer)
+            text.append(" a").append(((Consumer) i).getOperandA());
+        if (i instanceof DoubleConsumer)
+            text.append(" b").append(((DoubleConsumer) i).getOperandB());
+        if (i instanceof Immediate)
+            text.append(" i").append(((Immediate) i).getImmediate());
+        if (i instanceof Memory)
+            text.append(" o").append(((Memory) i).getOffset());
+        if (i instanceof Branch)
+            text.append(" t").append(((Branch) i).getTarget());
+        if (i instanceof MovLoop)
+            text.append(' ').append(((MovLoop) i).getDestination()).append(" i").append(((MovLoop) i).getImmediate());
+        if (i instanceof MovP)
+            text.append(" d").append(((MovP) i).getDestination()).append(" i").append(((MovP) i).getImmediate());
+    }
+
+    /**
+     * @return the schedules stored under the key, or null on a miss
+     */
+    Schedules get(String key) {
+        MemoryEntry entry = memory.get(key);
+        if (entry != null) {
+            entry.used = clock.incrementAndGet();
+            memoryHits.incrementAndGet();
+            return entry.schedules;
+        }
+
+        Path file = directory.resolve(key + SUFFIX);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            long available = Files.size(file);
+            byte[] loop = new byte[readLength(in, available)];
+            in.readFully(loop);
+            byte[] loopPip = new byte[readLength(in, available)];
+            in.readFully(loopPip);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            Schedules schedules = new Schedules(loop, loopPip);
+            remember(key, schedules);
+            diskHits.incrementAndGet();
+            return schedules;
+        } catch (IOException e) {
+            // Missing, or unreadable, which is as good as missing
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the schedules under the key. A failed store, say on a full disk or a read-only directory, only costs
+     * the entry on disk, so it is reported rather than thrown.
+     */
+    void put(String key, Schedules schedules) {
+        remember(key, schedules);
+
+        Path file = directory.resolve(key + SUFFIX);
+        Path partial = null;
+        try {
+            // A file of its own, since other processes may be storing the same key right now
+            partial = Files.createTempFile(directory, key, ".partial");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(partial))) {
+                out.writeInt(schedules.loop.length);
+                out.write(schedules.loop);
+                out.writeInt(schedules.loopPip.length);
+                out.write(schedules.loopPip);
+            }
+            long replaced = size(file);
+            // Readers either see the old entry or the whole new one
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskBytes.addAndGet(size(file) - replaced) > diskBudget)
+                evictFromDisk();
+        } catch (IOException e) {
+            failedStores.incrementAndGet();
+            System.err.printf("schedule cache: could not store %s: %s\n", key, e);
+            if (partial != null) {
+                try {
+                    Files.deleteIfExists(partial);
+                } catch (IOException ignored) {
+                    // Left for whoever cleans the directory
+                }
+            }
+        }
+    }
+
+    String report() {
+        return String.format("schedule cache: %d hits (%d in memory, %d on disk), %d misses, %d evictions, " +
+                        "%d failed stores", memoryHits.get() + diskHits.get(), memoryHits.get(), diskHits.get(),
+                misses.get(), evictions.get(), failedStores.get());
+    }
+
+    private void remember(String key, Schedules schedules) {
+        MemoryEntry entry = new MemoryEntry(schedules, clock.incrementAndGet());
+        MemoryEntry previous = memory.put(key, entry);
+        long delta = schedules.size() - (previous == null ? 0 : previous.schedules.size());
+        if (memoryBytes.addAndGet(delta) > MEMORY_BYTES)
+            evictFromMemory();
+    }
+
+    private synchronized void evictFromMemory() {
+        // Entries keep being used while this runs, so they are ordered by when they were last used before it
+        List<Map.Entry<String, MemoryEntry>> entries = new ArrayList<>(memory.entrySet());
+        long[] used = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            used[i] = entries.get(i).getValue().used;
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> used[i]));
+        for (int i : order) {
+            if (memoryBytes.get() <= MEMORY_BYTES / 2)
+                break;
+            Map.Entry<String, MemoryEntry> e = entries.get(i);
+            if (memory.remove(e.getKey(), e.getValue()))
+                memoryBytes.addAndGet(-e.getValue().schedules.size());
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is down to half its budget, so eviction does not
+     * run again on the very next store.
+     */
+    private synchronized void evictFromDisk() throws IOException {
+        List<Path> files;
+        try (Stream<Path> entries = entries()) {
+            files = new ArrayList<>(entries.toList());
+        }
+        long total = files.stream().mapToLong(ScheduleCache::size).sum();
+        files.sort(Comparator.comparing(ScheduleCache::lastModified));
+        for (Path file : files) {
+            if (total <= diskBudget / 2)
+                break;
+            long size = size(file);
+            if (Files.deleteIfExists(file)) {
+                total -= size;
+                evictions.incrementAndGet();
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private static int readLength(DataInputStream in, long available) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > available)
+            throw new IOException("corrupt cache entry");
+        return length;
+    }
+
+    private Stream<Path> entries() throws IOException {
+        return Files.list(directory).filter(p -> p.getFileName().toString().endsWith(SUFFIX));
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * The dumped loop and loop.pip documents of a program.
+     */
+    static class Schedules {
+        final byte[] loop, loopPip;
+
+        Schedules(byte[] loop, byte[] loopPip) {
+            this.loop = loop;
+            this.loopPip = loopPip;
+        }
+
+        long size() {
+            return loop.length + loopPip.length;
+        }
+    }
+
+    private static class MemoryEntry {
+        final Schedules schedules;
+        volatile long used;
+
+        MemoryEntry(Schedules schedules, long used) {
+            this.schedules = schedules;
+            this.used = used;
+        }
+    }
+}
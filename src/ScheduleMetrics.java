@@ -0,0 +1,191 @@
+import Microarchitecture.RegisterAllocator;
+import com.google.gson.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time and memory of scheduling one program go. Every phase records the wall time it took and the bytes
+ * its thread allocated, and every schedule records what it took to build: the II it started from and the one it
+ * achieved, its loop stages, the bundles it inserted, the registers it consumed and, for the pipelined one, the
+ * work of the modulo scheduler.
+ *
+ * The program's own phases, parse and analyze, go to the "program" section; those of each back-end, schedule,
+ * allocateRegisters, prepareLoop and dump, to its "loop" or "loop.pip" section. A phase runs on a single thread,
+ * so the back-ends may be measured concurrently.
+ *
+ * Metrics are off unless SCHEDULE_METRICS names the JSON file to write them to, and DISABLED only runs the phases.
+ */
+class ScheduleMetrics {
+    static final String PROGRAM = "program", LOOP = "loop", LOOP_PIP = "loop.pip";
+    static final ScheduleMetrics DISABLED = new ScheduleMetrics(null, false);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private final String input;
+    private final boolean enabled;
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+
+    ScheduleMetrics(String input) {
+        this(input, true);
+    }
+
+    private ScheduleMetrics(String input, boolean enabled) {
+        this.input = input;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the file the environment asks metrics to be written to, or null if there is none
+     */
+    static Path sidecarFromEnvironment() {
+        String path = System.getenv("SCHEDULE_METRICS");
+        return path == null || path.isEmpty() ? null : Paths.get(path);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs a phase and records its wall time and allocated bytes in the section. The phase is also a flight
+     * recorder event, whether metrics are enabled or not.
+     * @return the phase's result
+     */
+    <T, E extends Exception> T phase(String section, String name, Phase<T, E> phase) throws E {
+        SchedulerEvents.Phase event = new SchedulerEvents.Phase();
+        event.begin();
+        try {
+            return enabled ? measure(section, name, phase) : phase.run();
+        } finally {
+            if (event.shouldCommit()) {
+                event.section = section;
+                event.phase = name;
+                event.commit();
+            }
+        }
+    }
+
+    private <T, E extends Exception> T measure(String section, String name, Phase<T, E> phase) throws E {
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        T result = phase.run();
+        long nanos = System.nanoTime() - start;
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        synchronized (this) {
+            section(section).phases.put(name, new long[] {nanos, allocated});
+        }
+        return result;
+    }
+
+    /**
+     * Records what building the schedule took, once it is finished.
+     */
+    void record(String section, Schedule schedule, RegisterAllocator registers) {
+        if (!enabled)
+            return;
+        synchronized (this) {
+            Map<String, Long> counters = section(section).counters;
+            counters.put("initiationInterval", (long) schedule.getKernelLength());
+            counters.put("initiationIntervalLowerBound", (long) schedule.getInitiationIntervalLowerBound());
+            counters.put("loopStages", (long) schedule.getLoopStages());
+            counters.put("bundles", (long) schedule.size());
+            counters.put("insertedBundles", (long) schedule.getInsertedBundles());
+            counters.put("simpleRegisters", (long) registers.getSimpleRegistersUsed());
+            counters.put("rotatingRegisters", (long) registers.getRotatingRegistersUsed());
+            counters.put("rotatingPredicates", (long) registers.getRotatingPredicatesUsed());
+            if (schedule instanceof PipelinedSchedule && ((PipelinedSchedule) schedule).getModuloCounters() != null) {
+                ModuloScheduler.Counters modulo = ((PipelinedSchedule) schedule).getModuloCounters();
+                counters.put("moduloAttempts", (long) modulo.attempts);
+                counters.put("moduloPlacements", (long) modulo.placements);
+                counters.put("moduloForcedPlacements", (long) modulo.forced);
+                counters.put("moduloEvictions", (long) modulo.evictions);
+            }
+        }
+    }
+
+    /**
+     * @return the wall time of a phase in nanoseconds, or -1 if it was not measured
+     */
+    synchronized long getNanos(String section, String phase) {
+        long[] sample = sections.containsKey(section) ? sections.get(section).phases.get(phase) : null;
+        return sample == null ? -1 : sample[0];
+    }
+
+    /**
+     * @return the bytes a phase allocated, or -1 if it was not measured
+     */
+    synchronized long getAllocatedBytes(String section, String phase) {
+        long[] sample = sections.containsKey(section) ? sections.get(section).phases.get(phase) : null;
+        return sample == null ? -1 : sample[1];
+    }
+
+    /**
+     * @return the value of a counter, or -1 if it was not recorded
+     */
+    synchronized long getCounter(String section, String counter) {
+        Long value = sections.containsKey(section) ? sections.get(section).counters.get(counter) : null;
+        return value == null ? -1 : value;
+    }
+
+    synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("input", input);
+        sections.forEach((name, section) -> {
+            JsonObject s = new JsonObject();
+            section.phases.forEach((phase, sample) -> {
+                JsonObject p = new JsonObject();
+                p.addProperty("nanos", sample[0]);
+                p.addProperty("allocatedBytes", sample[1]);
+                s.add(phase, p);
+            });
+            section.counters.forEach(s::addProperty);
+            json.add(name, s);
+        });
+        return json;
+    }
+
+    void write(Path path) throws IOException {
+        write(toJson(), path);
+    }
+
+    /**
+     * Writes the metrics of several programs as one array.
+     */
+    static void write(List<ScheduleMetrics> metrics, Path path) throws IOException {
+        JsonArray array = new JsonArray();
+        metrics.forEach(m -> array.add(m.toJson()));
+        write(array, path);
+    }
+
+    private static void write(JsonElement json, Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            GSON.toJson(json, writer);
+            writer.write('\n');
+        }
+    }
+
+    private Section section(String name) {
+        return sections.computeIfAbsent(name, n -> new Section());
+    }
+
+    interface Phase<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private static class Section {
+        final Map<String, long[]> phases = new LinkedHashMap<>();
+        final Map<String, Long> counters = new LinkedHashMap<>();
+    }
+}
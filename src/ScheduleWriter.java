@@ -0,0 +1,114 @@
+import Instructions.Instruction;
+import Microarchitecture.Microarchitecture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a schedule to a file bundle by bundle, through a fixed buffer, so the memory used does not grow with the
+ * output. The document is the one dump always wrote: a bundle per line, each an array of its slots as Gson prints
+ * a list of strings, strings escaped the same HTML-safe way.
+ */
+class ScheduleWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // Holds the text of one slot at a time
+    private final StringBuilder text = new StringBuilder(64);
+    private int bundles = 0;
+
+    ScheduleWriter(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    ScheduleWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    void write(Bundle bundle) throws IOException {
+        put(bundles++ == 0 ? "[\n\t" : ",\n\t");
+        put('[');
+        for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+            if (slot > 0)
+                put(',');
+            text.setLength(0);
+            bundle.get(slot).appendTo(text);
+            putString(text);
+        }
+        put(']');
+    }
+
+    /**
+     * Ends the document and closes the channel. A schedule without bundles has always been written as just the
+     * closing line.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            put("\n]");
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void putString(CharSequence s) throws IOException {
+        put('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> put("\\\"");
+                case '\\' -> put("\\\\");
+                case '\t' -> put("\\t");
+                case '\b' -> put("\\b");
+                case '\n' -> put("\\n");
+                case '\r' -> put("\\r");
+                case '\f' -> put("\\f");
+                case '<', '>', '&', '=', '\'', '\u2028', '\u2029' -> putUnicodeEscape(c);
+                default -> {
+                    if (c < 0x20)
+                        putUnicodeEscape(c);
+                    else if (c < 0x80)
+                        put(c);
+                    else
+                        for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8))
+                            put((char) (b & 0xff));
+                }
+            }
+        }
+        put('"');
+    }
+
+    private void putUnicodeEscape(char c) throws IOException {
+        put("\\u");
+        for (int shift = 12; shift >= 0; shift -= 4)
+            put((char) HEX[(c >> shift) & 0xf]);
+    }
+
+    private void put(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            put(s.charAt(i));
+    }
+
+    private void put(char c) throws IOException {
+        if (!buffer.hasRemaining())
+            flush();
+        buffer.put((byte) c);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -1,44 +1,91 @@
 import Instructions.*;
+import Microarchitecture.RegisterAllocator;
+import Tracing.Trace;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 public class Scheduler {
+    private static final int PARALLEL_ANALYSIS_THRESHOLD = 32_768;
+
     private final ArrayList<Instruction> program;
     private final Instruction loopStart, loopEnd;
 
     public static Schedule schedule(ArrayList<Instruction> program, boolean pipelined) {
-        Instruction loopStart, loopEnd;
-        ArrayList<InstructionDependency> deps;
-        Schedule sched;
-        Scheduler scheduler;
+        return schedule(program, pipelined, new RegisterAllocator());
+    }
 
-        scheduler = new Scheduler(program);
-        loopStart = scheduler.getLoopStart();
-        loopEnd = scheduler.getLoopEnd();
+    /**
+     * Schedules a program using the given register allocator. All state of a run lives in the allocator,
+     * the analysis and the returned schedule, so concurrent calls on distinct programs do not interfere.
+     */
+    public static Schedule schedule(ArrayList<Instruction> program, boolean pipelined, RegisterAllocator registers) {
+        return schedule(analyze(program), pipelined, registers);
+    }
 
-        deps = DependencyAnalyzer.analyze(program,
+    /**
+     * Runs the front-end: finds the loop bounds of the program and builds its dependency graph. Programs of at
+     * least PARALLEL_ANALYSIS_THRESHOLD instructions are analyzed on the fork/join pool.
+     */
+    public static AnalyzedProgram analyze(ArrayList<Instruction> program) {
+        return analyze(program, program.size() >= PARALLEL_ANALYSIS_THRESHOLD);
+    }
+
+    public static AnalyzedProgram analyze(ArrayList<Instruction> program, boolean parallel) {
+        Scheduler scheduler = new Scheduler(program);
+        DependencyGraph deps = DependencyAnalyzer.analyze(program,
                 scheduler.getInitialLoopStartAddress(),
                 scheduler.getInitialLoopEndAddress(),
-                scheduler.getBasicBlockZeroProducers(),
-                scheduler.getBasicBlockOneProducers(),
-                scheduler.getBasicBlockTwoProducers());
+                parallel);
+        return new AnalyzedProgram(program, scheduler.getLoopStart(), scheduler.getLoopEnd(), deps);
+    }
+
+    /**
+     * Schedules a private fork of an analyzed program; the analyzed program itself is left untouched and may be
+     * scheduled again, also concurrently.
+     */
+    public static Schedule schedule(AnalyzedProgram analyzed, boolean pipelined, RegisterAllocator registers) {
+        return schedule(analyzed, pipelined, registers, ScheduleMetrics.DISABLED);
+    }
+
+    /**
+     * Schedules as above, measuring every back-end phase into the loop or loop.pip section of the metrics.
+     */
+    static Schedule schedule(AnalyzedProgram analyzed, boolean pipelined, RegisterAllocator registers,
+                             ScheduleMetrics metrics) {
+        String section = pipelined ? ScheduleMetrics.LOOP_PIP : ScheduleMetrics.LOOP;
+        Schedule sched = metrics.phase(section, "schedule", () -> placeInstructions(analyzed, pipelined, registers));
+        metrics.phase(section, "allocateRegisters", () -> {
+            sched.allocateRegisters();
+            return sched;
+        });
+        metrics.phase(section, "prepareLoop", () -> {
+            sched.prepareLoop();
+            return sched;
+        });
+        metrics.record(section, sched, registers);
+        return sched;
+    }
 
-        sched = pipelined && loopStart != null ?
-                new PipelinedSchedule(loopStart, loopEnd, program, deps) :
-                new SequentialSchedule(loopStart, loopEnd, program, deps);
+    /**
+     * Places every instruction of a fork of the analyzed program into bundles, leaving register allocation and
+     * loop preparation to the caller.
+     */
+    static Schedule placeInstructions(AnalyzedProgram analyzed, boolean pipelined, RegisterAllocator registers) {
+        AnalyzedProgram.Fork fork = analyzed.fork();
+        ArrayList<Instruction> program = fork.program;
+        Instruction loopStart = fork.loopStart, loopEnd = fork.loopEnd;
+        DependencyGraph deps = fork.dependencyGraph;
+        Schedule sched;
 
-//        System.out.printf("%s\n", scheduler.getInitialProgram(sched));
+        sched = pipelined && loopStart != null ?
+                new PipelinedSchedule(loopStart, loopEnd, program, deps, registers) :
+                new SequentialSchedule(loopStart, loopEnd, program, deps, registers);
 
         for (Instruction i : program)
             sched.scheduleInstruction(i);
 
-//        System.out.println("\nInitial schedule:");
-//        System.out.printf("%s\n", sched);
-
-        sched.allocateRegisters();
-        sched.prepareLoop();
+        if (Trace.ENABLED)
+            Trace.snapshot("Initial schedule", sched);
 
         return sched;
     }
@@ -75,54 +122,6 @@ public class Scheduler {
         }
     }
 
-    private String getInitialProgram(Schedule sched) {
-        AtomicInteger i = new AtomicInteger(0);
-        String programString = program.stream()
-                .map(instr -> {
-                    int index = i.getAndIncrement();
-                    return (index == getInitialLoopStartAddress() ? "BB1:" : "") +
-                            (index == getInitialLoopEndAddress() ? "BB2:" : "") +
-                            String.format("\t0x%x: %s\n", index, instr);
-                })
-                .collect(Collectors.joining());
-        return "BB0:" + programString + String.format("Initial II: %d\n", sched.getInitiationInterval());
-    }
-
-    private ArrayList<Instruction> getBasicBlockZero() {
-        return program.stream().filter(i -> i.getAddress() < getInitialLoopStartAddress())
-                .collect(Collectors.toCollection(ArrayList::new));
-    }
-
-    private ArrayList<Instruction> getBasicBlockOne() {
-        return program.stream().filter(i -> i.getAddress() >= getInitialLoopStartAddress() &&
-                    i.getAddress() < getInitialLoopEndAddress())
-                .collect(Collectors.toCollection(ArrayList::new));
-    }
-
-    private ArrayList<Instruction> getBasicBlockTwo() {
-        return program.stream().filter(i -> i.getAddress() >= getInitialLoopEndAddress())
-                .collect(Collectors.toCollection(ArrayList::new));
-    }
-
-    private ArrayList<Producer> getProducersFromBasicBlock(List<Instruction> basicBlock) {
-        return basicBlock.stream()
-                .filter(i -> i instanceof Producer)
-                .map(p -> (Producer) p)
-                .collect(Collectors.toCollection(ArrayList::new));
-    }
-
-    private ArrayList<Producer> getBasicBlockZeroProducers() {
-        return getProducersFromBasicBlock(getBasicBlockZero());
-    }
-
-    private ArrayList<Producer> getBasicBlockOneProducers() {
-        return getProducersFromBasicBlock(getBasicBlockOne());
-    }
-
-    private ArrayList<Producer> getBasicBlockTwoProducers() {
-        return getProducersFromBasicBlock(getBasicBlockTwo());
-    }
-
     private int getInitialLoopStartAddress() {
         return loopStart == null ? program.size() : loopStart.getAddress();
     }
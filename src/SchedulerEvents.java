@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events of the scheduler, so a recording of a slow compile shows where its time went without
+ * rebuilding with debug output. Events cost next to nothing while nothing records them. To record, run with e.g.
+ * java -XX:StartFlightRecording=filename=schedule.jfr ... Main input.json loop.json looppip.json
+ * and look for the Scheduler category.
+ */
+final class SchedulerEvents {
+    private SchedulerEvents() {
+    }
+
+    @Name("scheduler.Phase")
+    @Label("Scheduler Phase")
+    @Category("Scheduler")
+    @Description("A phase of scheduling a program, in the program's section or a back-end's")
+    static class Phase extends Event {
+        @Label("Section")
+        String section;
+
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("scheduler.InitiationIntervalEscalation")
+    @Label("II Escalation")
+    @Category("Scheduler")
+    @Description("A failed attempt at modulo scheduling the loop, after which the II is increased")
+    static class InitiationIntervalEscalation extends Event {
+        @Label("Loop Start")
+        int loopStart;
+
+        @Label("Operations")
+        int operations;
+
+        @Label("Old II")
+        int oldInitiationInterval;
+
+        @Label("New II")
+        int newInitiationInterval;
+
+        @Label("Placements")
+        int placements;
+
+        @Label("Evictions")
+        int evictions;
+
+        @Label("Producer")
+        @Description("Address of the producer that last came too late for a placed consumer, -1 if none did")
+        int producer;
+
+        @Label("Consumer")
+        @Description("Address of the consumer evicted for it")
+        int consumer;
+    }
+
+    @Name("scheduler.LoopLayout")
+    @Label("Loop Layout")
+    @Category("Scheduler")
+    @Description("The modulo scheduled loop body laid out in stages")
+    static class LoopLayout extends Event {
+        @Label("Loop Start")
+        int loopStart;
+
+        @Label("Operations")
+        int operations;
+
+        @Label("II Lower Bound")
+        int lowerBound;
+
+        @Label("II")
+        int initiationInterval;
+
+        @Label("Stages")
+        int stages;
+    }
+}
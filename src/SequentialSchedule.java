@@ -1,17 +1,18 @@
 import Instructions.*;
-import Microarchitecture.Microarchitecture;
+import Microarchitecture.RegisterAllocator;
+import Tracing.Trace;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 public class SequentialSchedule extends Schedule {
     public SequentialSchedule(Instruction loopStart, Instruction loopEnd,
                               ArrayList<Instruction> program,
-                              ArrayList<InstructionDependency> deps) {
-        super(loopStart, loopEnd, program, deps);
+                              DependencyGraph deps,
+                              RegisterAllocator registers) {
+        super(loopStart, loopEnd, program, deps, registers);
     }
 
     @Override
@@ -30,6 +31,14 @@ public class SequentialSchedule extends Schedule {
         return bundle.insertIntoSlot(instruction);
     }
 
+    @Override
+    protected int nextCandidate(int index, int slots) {
+        // Reaching the loop end pushes it down, which makes room right there
+        int loopEndAddress = getLoopEndScheduledAddress();
+        int free = super.nextCandidate(index, slots);
+        return loopEndAddress >= index ? Math.min(free, loopEndAddress) : free;
+    }
+
     @Override
     public void prepareLoop() {
         return;
@@ -44,7 +53,7 @@ public class SequentialSchedule extends Schedule {
     private int computeInterloopDependencyResolutionLowerBoundSlot(Mov mov) {
         AtomicInteger earliest = new AtomicInteger(getLoopEndScheduledAddress() - 1);
         bundles.subList(getLoopStartAddress(), Math.min(getLoopEndScheduledAddress(), bundles.size())).forEach(b ->
-                b.getBundle().forEach(i -> {
+                b.forEach(i -> {
                     if (!(i instanceof Producer)) {
                         return;
                     }
@@ -62,21 +71,25 @@ public class SequentialSchedule extends Schedule {
     @Override
     public void allocateRegisters() {
         allocateFresh();
-//        System.out.printf("Allocated fresh produced registers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Allocated fresh produced registers", this);
         mapConsumed(bundles);
-//        System.out.printf("Mapped consumed registers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Mapped consumed registers", this);
         if (containsLoop()) {
             handleInterloopDependencies();
-//            System.out.printf("Handled interloop dependencies:\n%s\n", this);
+            if (Trace.ENABLED)
+                Trace.snapshot("Handled interloop dependencies", this);
         }
         allocateEarlierReaders();
-//        System.out.printf("Handled earlier readers:\n%s\n", this);
+        if (Trace.ENABLED)
+            Trace.snapshot("Handled earlier readers", this);
     }
 
     private void allocateFresh() {
         bundles.forEach(b ->
-                b.getBundle().stream().filter(i -> i instanceof Producer).forEach(p -> {
-                    int fresh = Microarchitecture.getFreshSimpleRegister();
+                b.stream().filter(i -> i instanceof Producer).forEach(p -> {
+                    int fresh = registers.getFreshSimpleRegister();
                     ((Producer) p).setMappedDestination(fresh);
                 }));
     }
@@ -84,25 +97,49 @@ public class SequentialSchedule extends Schedule {
 
     private void handleInterloopDependencies() {
         ArrayList<Mov> movs = new ArrayList<>();
-        program.forEach(i ->
-                dependencyMatrix.get(i.getAddress()).getInterloopDependencies().stream()
-                        .filter(d -> d.getScheduledAddress() >= getLoopStartAddress())
-                        .forEach(d -> {
-                            int dest = getDependencySourceRegister((Consumer)i, d);
-                            int cons = d.getMappedDestination();
-                            Mov mov = new Mov(Math.min(bundles.size()-1, getLoopEndScheduledAddress()-1), dest, cons);
-                            mov.setOperandA(cons); // mark operand as remapped
-                            movs.add(mov);
-                        }));
-        ArrayList<Mov> distinct = movs.stream()
-                .collect(Collectors.collectingAndThen(
-                        Collectors.toCollection(() -> new TreeSet<>(Comparator.comparing(Mov::toString))),
-                        ArrayList::new
-                ));
+        for (Instruction i : program)
+            for (int e = dependencyGraph.start(i.getAddress(), DependencyGraph.INTERLOOP);
+                 e < dependencyGraph.end(i.getAddress(), DependencyGraph.INTERLOOP); e++) {
+                Producer d = producer(e);
+                if (d.getScheduledAddress() < getLoopStartAddress())
+                    continue;
+                int dest = getDependencySourceRegister((Consumer)i, d);
+                int cons = d.getMappedDestination();
+                Mov mov = new Mov(Math.min(bundles.size()-1, getLoopEndScheduledAddress()-1), dest, cons);
+                mov.setOperandA(cons); // mark operand as remapped
+                movs.add(mov);
+            }
+        HashMap<InstructionKey, Mov> unique = new HashMap<>();
+        movs.forEach(mov -> unique.putIfAbsent(mov.key(), mov));
+        // Inserted in the order their text sorts in, as they always were
+        ArrayList<Mov> distinct = new ArrayList<>(unique.values());
+        distinct.sort(Comparator.comparing(Mov::getMappedDestination, SequentialSchedule::compareAsText)
+                .thenComparing(Mov::getMappedOperandA, SequentialSchedule::compareAsText));
         distinct.forEach(this::insertInterloopMov);
         moveLoopToEnd();
     }
 
+    /**
+     * Compares registers the way their decimal text compares, which for unequal lengths is the shorter one padded
+     * with zeros, and the shorter one first on a tie.
+     */
+    private static int compareAsText(int a, int b) {
+        int digitsA = digits(a), digitsB = digits(b);
+        long paddedA = a, paddedB = b;
+        for (int d = digitsA; d < digitsB; d++)
+            paddedA *= 10;
+        for (int d = digitsB; d < digitsA; d++)
+            paddedB *= 10;
+        return paddedA != paddedB ? Long.compare(paddedA, paddedB) : Integer.compare(digitsA, digitsB);
+    }
+
+    private static int digits(int register) {
+        int digits = 1;
+        for (int rest = register / 10; rest > 0; rest /= 10)
+            digits++;
+        return digits;
+    }
+
     private int getDependencySourceRegister(Consumer c, Producer p) {
         if (c.getOperandA() == p.getDestination())
             return c.getMappedOperandA();
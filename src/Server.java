@@ -0,0 +1,240 @@
+import Instructions.Instruction;
+import Microarchitecture.RegisterAllocator;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Resident scheduling daemon. Clients connect over a localhost TCP port or a Unix-domain socket and send
+ * instruction lists in the input.json format, one JSON array after the other. For every request the server
+ * answers with a single line holding {"loop": [...], "loop.pip": [...]}, or {"error": "..."} if the request
+ * could not be scheduled.
+ *
+ * Requests may be pipelined: a client can send several programs without waiting, and the answers come back in
+ * request order. At most a fixed number of programs are scheduled at the same time across all connections, and at
+ * most a fixed number of connections are served at once; further clients wait in the listen backlog.
+ *
+ * Example execution:
+ * ./build.sh && ./server.sh 7470 4 64
+ * cat input.json | nc localhost 7470
+ */
+public class Server {
+    private static final int MAX_PIPELINE_DEPTH = 32;
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+    private static final Type LIST_TYPE = new TypeToken<List<String>>() {}.getType();
+    private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final ScheduleCache cache;
+    private final Semaphore connections;
+
+    private Server(ServerSocketChannel server, int maxConcurrent, int maxConnections, ScheduleCache cache) {
+        this.server = server;
+        this.cache = cache;
+        this.connections = new Semaphore(maxConnections);
+        this.workers = Executors.newFixedThreadPool(maxConcurrent, r -> {
+            Thread t = new Thread(r, "scheduler-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.out.print("usage: java Server <port | path-to-unix-socket> [max concurrent schedules] " +
+                    "[max connections]\n");
+            System.exit(0);
+        }
+
+        int maxConcurrent = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_CONNECTIONS;
+        ServerSocketChannel channel;
+        SocketAddress address;
+        if (args[0].chars().allMatch(Character::isDigit)) {
+            channel = ServerSocketChannel.open(StandardProtocolFamily.INET);
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+        } else {
+            Path path = Path.of(args[0]);
+            Files.deleteIfExists(path);
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            address = UnixDomainSocketAddress.of(path);
+        }
+        channel.bind(address);
+        System.out.printf("Listening on %s\n", channel.getLocalAddress());
+
+        ScheduleCache cache = ScheduleCache.fromEnvironment();
+        if (cache != null)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(cache.report())));
+        new Server(channel, maxConcurrent, maxConnections, cache).serve();
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            // A permit is taken before accepting, so clients over the limit are not even accepted yet
+            connections.acquireUninterruptibly();
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                connections.release();
+                throw e;
+            }
+            Thread reader = new Thread(() -> handle(client), "connection-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Reads requests off a connection and queues them for scheduling, while a companion thread writes the
+     * answers back in the order the requests arrived. At most MAX_PIPELINE_DEPTH requests are in flight; the
+     * queue has room for those, a framing error and the end marker, so handing it those never blocks.
+     */
+    private void handle(SocketChannel client) {
+        BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(MAX_PIPELINE_DEPTH + 2);
+        Semaphore inFlight = new Semaphore(MAX_PIPELINE_DEPTH);
+        Thread reading = Thread.currentThread();
+        Thread writer = new Thread(() -> respond(client, pending, inFlight, reading), "connection-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new ChannelInput(client), StandardCharsets.UTF_8));
+            reader.setLenient(true);
+            int index = 0;
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                String source = String.format("request %d", index++);
+                JsonElement request = JsonParser.parseReader(reader);
+                inFlight.acquire();
+                pending.add(workers.submit(() -> schedule(request, source)));
+            }
+        } catch (IOException | JsonParseException e) {
+            // The connection is unusable past a framing error; answer what was received and hang up
+            pending.add(CompletableFuture.completedFuture(error(e)));
+        } catch (InterruptedException e) {
+            // The writer is gone
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.add(END);
+        }
+    }
+
+    /**
+     * Writes the answers of a connection. If the client goes away, the connection is closed and the reader
+     * interrupted, so it stops rather than waiting for room to queue more requests.
+     */
+    private void respond(SocketChannel client, BlockingQueue<Future<String>> pending, Semaphore inFlight,
+                         Thread reader) {
+        try (client) {
+            for (Future<String> response = pending.take(); response != END; response = pending.take()) {
+                String line;
+                try {
+                    line = response.get();
+                } catch (ExecutionException e) {
+                    line = error(e.getCause());
+                }
+                ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining())
+                    client.write(buffer);
+                inFlight.release();
+            }
+        } catch (IOException e) {
+            // Client went away; nothing left to answer to
+            reader.interrupt();
+            pending.forEach(response -> response.cancel(false));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.release();
+        }
+    }
+
+    private String schedule(JsonElement request, String source) {
+        try {
+            List<String> instructions = gson.fromJson(request, LIST_TYPE);
+            if (instructions == null)
+                throw new IOException(String.format("%s: empty input", source));
+
+            ArrayList<Instruction> program = IO.parseProgram(instructions, source);
+            JsonObject response = new JsonObject();
+            if (cache == null) {
+                Schedule[] schedules = schedule(program);
+                response.add("loop", IO.toJson(schedules[0]));
+                response.add("loop.pip", IO.toJson(schedules[1]));
+                return gson.toJson(response);
+            }
+
+            String key = ScheduleCache.key(program);
+            ScheduleCache.Schedules cached = cache.get(key);
+            if (cached == null) {
+                Schedule[] schedules = schedule(program);
+                cached = new ScheduleCache.Schedules(IO.dump(schedules[0]), IO.dump(schedules[1]));
+                cache.put(key, cached);
+            }
+            response.add("loop", IO.toJson(cached.loop));
+            response.add("loop.pip", IO.toJson(cached.loopPip));
+            return gson.toJson(response);
+        } catch (Exception | AssertionError e) {
+            return error(e);
+        }
+    }
+
+    private static Schedule[] schedule(ArrayList<Instruction> program) {
+        AnalyzedProgram analyzed = Scheduler.analyze(program);
+        return new Schedule[] {
+                Scheduler.schedule(analyzed, false, new RegisterAllocator()),
+                Scheduler.schedule(analyzed, true, new RegisterAllocator())};
+    }
+
+    private String error(Throwable cause) {
+        JsonObject response = new JsonObject();
+        response.addProperty("error", cause.toString());
+        return gson.toJson(response);
+    }
+
+    /**
+     * Reads straight from the channel. Channels.newInputStream would hold the channel's blocking lock while
+     * waiting for input, which stalls the writer thread of the same connection.
+     */
+    private static class ChannelInput extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInput(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+}
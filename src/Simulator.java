@@ -0,0 +1,261 @@
+import Microarchitecture.Microarchitecture;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Executes a finished schedule cycle by cycle on the VLIW machine it was scheduled for, to measure what it costs
+ * rather than counting its bundles. A bundle issues every cycle:
+ *
+ * - every operation reads its operands and its predicate when its bundle issues, and its result is written
+ *   getLatency() cycles later, so a consumer scheduled too early reads the old value, as the machine would;
+ * - registers and predicates from 32 on rotate: loop.pip increments the rotating register base, so what was x32
+ *   is read as x33 in the next iteration, and sets the new p32 while the loop counter LC lasts, then clears it
+ *   while the epilogue counter EC lasts;
+ * - loop branches back while LC lasts, decrementing it;
+ * - ld and st address a flat memory of 64 bit words.
+ *
+ * Execution ends when it leaves the last bundle; the cycles reported include waiting for the results still in
+ * flight then.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./simulate.sh given_tests/17/looppip.json
+ */
+public class Simulator {
+    static final int ROTATING_START = 32;
+    static final int ROTATING = Microarchitecture.REGISTERS - ROTATING_START;
+    private static final long DEFAULT_MAX_CYCLES = 100_000_000;
+    private static final int DEFAULT_MEMORY_WORDS = 1 << 16;
+    private static final String[] SLOT_NAMES = {"ALU0", "ALU1", "MUL", "MEM", "BR"};
+
+    // Targets of a write in flight besides registers 0 to REGISTERS - 1
+    private static final int PREDICATE = Microarchitecture.REGISTERS, LC = 2 * Microarchitecture.REGISTERS,
+            EC = LC + 1, MEMORY = EC + 1;
+
+    private final DecodedSchedule schedule;
+
+    Simulator(DecodedSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.print("usage: java Simulator <loop.json | looppip.json> [memory words] [max cycles]\n");
+            System.exit(0);
+        }
+        int words = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MEMORY_WORDS;
+        long maxCycles = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_MAX_CYCLES;
+        try {
+            Simulator simulator = new Simulator(DecodedSchedule.read(Paths.get(args[0])));
+            Result result = simulator.run(new State(words), maxCycles);
+            System.out.print(result.report());
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The architectural state: registers and predicates by their physical number, the loop counters, the rotating
+     * register base and the data memory.
+     */
+    static class State {
+        final long[] registers = new long[Microarchitecture.REGISTERS];
+        final boolean[] predicates = new boolean[Microarchitecture.REGISTERS];
+        long lc, ec;
+        int rrb;
+        final long[] memory;
+
+        State(int memoryWords) {
+            memory = new long[memoryWords];
+        }
+
+        /**
+         * @return the physical register or predicate a name refers to under the current rotation
+         */
+        int physical(int name) {
+            return name < ROTATING_START ? name : ROTATING_START + Math.floorMod(name - ROTATING_START - rrb, ROTATING);
+        }
+
+        long register(int name) {
+            return registers[physical(name)];
+        }
+
+        boolean predicate(int name) {
+            return predicates[physical(name)];
+        }
+    }
+
+    static class Result {
+        long cycles, bundlesIssued, branchesTaken;
+        // Per slot, the operations that executed and those a false predicate squashed
+        final long[] executed = new long[Microarchitecture.PIPELINE_WIDTH];
+        final long[] squashed = new long[Microarchitecture.PIPELINE_WIDTH];
+
+        double utilization(int slot) {
+            return cycles == 0 ? 0 : (double) executed[slot] / cycles;
+        }
+
+        String report() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("cycles %d, bundles issued %d, branches taken %d\n",
+                    cycles, bundlesIssued, branchesTaken));
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++)
+                out.append(String.format("%-5s %6.1f%% busy, %d executed, %d squashed\n", SLOT_NAMES[slot],
+                        100 * utilization(slot), executed[slot], squashed[slot]));
+            return out.toString();
+        }
+    }
+
+    /**
+     * Runs the schedule from its first bundle on the given state, which is left as execution ends.
+     * @throws IllegalStateException if it runs for more than maxCycles or accesses memory out of range
+     */
+    Result run(State state, long maxCycles) {
+        Result result = new Result();
+        // Writes in flight, by the cycle they land in modulo the ring size
+        int ring = schedule.maximumLatency() + 1;
+        int[][] targets = new int[ring][Microarchitecture.PIPELINE_WIDTH];
+        long[][] values = new long[ring][Microarchitecture.PIPELINE_WIDTH];
+        int[] pending = new int[ring];
+        long lastWrite = 0;
+
+        int pc = 0;
+        long cycle = 0;
+        while (pc < schedule.bundles) {
+            if (cycle == maxCycles)
+                throw new IllegalStateException(String.format("still running after %d cycles, at bundle %d",
+                        cycle, pc));
+            int now = (int) (cycle % ring);
+            for (int w = 0; w < pending[now]; w++)
+                write(state, targets[now][w], values[now][w]);
+            pending[now] = 0;
+
+            int next = pc + 1;
+            for (int slot = 0; slot < Microarchitecture.PIPELINE_WIDTH; slot++) {
+                int op = pc * Microarchitecture.PIPELINE_WIDTH + slot;
+                int opcode = schedule.opcode[op];
+                if (opcode == DecodedSchedule.NOP)
+                    continue;
+                if (schedule.predicate[op] != DecodedSchedule.NO_PREDICATE && !state.predicate(schedule.predicate[op])) {
+                    result.squashed[slot]++;
+                    continue;
+                }
+                result.executed[slot]++;
+
+                int target;
+                long value;
+                switch (opcode) {
+                    case DecodedSchedule.ADD -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.register(schedule.operandA[op]) + state.register(schedule.operandB[op]);
+                    }
+                    case DecodedSchedule.SUB -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.register(schedule.operandA[op]) - state.register(schedule.operandB[op]);
+                    }
+                    case DecodedSchedule.MULU -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.register(schedule.operandA[op]) * state.register(schedule.operandB[op]);
+                    }
+                    case DecodedSchedule.ADDI -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.register(schedule.operandA[op]) + schedule.immediate[op];
+                    }
+                    case DecodedSchedule.LD -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.memory[address(state, state.register(schedule.operandA[op]) +
+                                schedule.immediate[op], cycle, pc)];
+                    }
+                    case DecodedSchedule.ST -> {
+                        target = MEMORY + address(state, state.register(schedule.operandB[op]) +
+                                schedule.immediate[op], cycle, pc);
+                        value = state.register(schedule.operandA[op]);
+                    }
+                    case DecodedSchedule.MOV -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = state.register(schedule.operandA[op]);
+                    }
+                    case DecodedSchedule.MOVI -> {
+                        target = state.physical(schedule.destination[op]);
+                        value = schedule.immediate[op];
+                    }
+                    case DecodedSchedule.MOVP -> {
+                        target = PREDICATE + state.physical(schedule.destination[op]);
+                        value = schedule.immediate[op];
+                    }
+                    case DecodedSchedule.MOV_LC -> {
+                        target = LC;
+                        value = schedule.immediate[op];
+                    }
+                    case DecodedSchedule.MOV_EC -> {
+                        target = EC;
+                        value = schedule.immediate[op];
+                    }
+                    case DecodedSchedule.LOOP -> {
+                        if (state.lc > 0) {
+                            state.lc--;
+                            next = (int) schedule.immediate[op];
+                            result.branchesTaken++;
+                        }
+                        continue;
+                    }
+                    case DecodedSchedule.LOOP_PIP -> {
+                        if (state.lc > 0 || state.ec > 0) {
+                            boolean filling = state.lc > 0;
+                            if (filling)
+                                state.lc--;
+                            else
+                                state.ec--;
+                            // Rotates after this bundle's operations have named their registers
+                            state.rrb++;
+                            state.predicates[state.physical(ROTATING_START)] = filling;
+                            next = (int) schedule.immediate[op];
+                            result.branchesTaken++;
+                        }
+                        continue;
+                    }
+                    default -> throw new IllegalStateException(String.format("unknown opcode %d", opcode));
+                }
+                long lands = cycle + schedule.latency[op];
+                int at = (int) (lands % ring);
+                targets[at][pending[at]] = target;
+                values[at][pending[at]++] = value;
+                lastWrite = Math.max(lastWrite, lands);
+            }
+            result.bundlesIssued++;
+            pc = next;
+            cycle++;
+        }
+
+        // Let the writes in flight land
+        for (long c = cycle; c < lastWrite + 1; c++) {
+            int now = (int) (c % ring);
+            for (int w = 0; w < pending[now]; w++)
+                write(state, targets[now][w], values[now][w]);
+            pending[now] = 0;
+        }
+        result.cycles = Math.max(cycle, lastWrite);
+        return result;
+    }
+
+    private static void write(State state, int target, long value) {
+        if (target < PREDICATE)
+            state.registers[target] = value;
+        else if (target < LC)
+            state.predicates[target - PREDICATE] = value != 0;
+        else if (target == LC)
+            state.lc = value;
+        else if (target == EC)
+            state.ec = value;
+        else
+            state.memory[target - MEMORY] = value;
+    }
+
+    private static int address(State state, long address, long cycle, int pc) {
+        if (address < 0 || address >= state.memory.length)
+            throw new IllegalStateException(String.format("cycle %d, bundle %d: address %d is outside the %d words "
+                    + "of memory", cycle, pc, address, state.memory.length));
+        return (int) address;
+    }
+}
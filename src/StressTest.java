@@ -0,0 +1,125 @@
+import Instructions.Instruction;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that Scheduler.schedule is reentrant: every kernel is first scheduled alone on one thread, then all of
+ * them many times over on concurrent threads, each thread in its own random order, and every concurrent run has
+ * to dump exactly what the single-threaded one did, for both back-ends.
+ *
+ * The kernels are generated, with a spread of sizes, recurrences and multiplications, unless input.json files are
+ * given instead. Exits with status 1 on any difference.
+ *
+ * Example execution with run scripts:
+ * ./build.sh && ./stress.sh --threads 8 --rounds 4
+ */
+public class StressTest {
+    private int threads = 8, kernels = 32, rounds = 4;
+    private long seed = 1;
+    private final List<String> inputs = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StressTest test = new StressTest();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads" -> test.threads = Integer.parseInt(args[++i]);
+                case "--kernels" -> test.kernels = Integer.parseInt(args[++i]);
+                case "--rounds" -> test.rounds = Integer.parseInt(args[++i]);
+                case "--seed" -> test.seed = Long.parseLong(args[++i]);
+                default -> {
+                    if (args[i].startsWith("--")) {
+                        System.out.print("usage: java StressTest [--threads n] [--kernels n] [--rounds n] " +
+                                "[--seed n] [input.json ...]\n");
+                        System.exit(0);
+                    }
+                    test.inputs.add(args[i]);
+                }
+            }
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        List<String> names = new ArrayList<>(), programs = new ArrayList<>();
+        if (inputs.isEmpty()) {
+            Random random = new Random(seed);
+            for (int k = 0; k < kernels; k++) {
+                int body = 4 + random.nextInt(60);
+                KernelGenerator generator = KernelGenerator.ofSize(body + 20 + random.nextInt(100), body, seed + k);
+                generator.recurrences = random.nextInt(Math.min(4, (body - 2) / 2) + 1);
+                generator.muluShare = random.nextDouble() * 0.5;
+                names.add(String.format("kernel %d", k));
+                programs.add(generator.toJson());
+            }
+        } else {
+            for (String input : inputs) {
+                names.add(input);
+                programs.add(Files.readString(Paths.get(input), StandardCharsets.UTF_8));
+            }
+        }
+
+        // Reference dumps, sequential and pipelined per kernel, scheduled one at a time
+        byte[][][] expected = new byte[programs.size()][][];
+        for (int k = 0; k < programs.size(); k++)
+            expected[k] = dumps(programs.get(k), names.get(k));
+
+        AtomicInteger runs = new AtomicInteger(), differences = new AtomicInteger();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long threadSeed = seed + 31L * (t + 1);
+            workers[t] = new Thread(() -> {
+                List<Integer> order = new ArrayList<>();
+                for (int round = 0; round < rounds; round++)
+                    for (int k = 0; k < programs.size(); k++)
+                        order.add(k);
+                Collections.shuffle(order, new Random(threadSeed));
+                try {
+                    for (int k : order) {
+                        byte[][] actual = dumps(programs.get(k), names.get(k));
+                        runs.incrementAndGet();
+                        for (int backEnd = 0; backEnd < 2; backEnd++) {
+                            if (!Arrays.equals(actual[backEnd], expected[k][backEnd])) {
+                                differences.incrementAndGet();
+                                System.out.printf("%s: the concurrent %s schedule differs from the single-threaded " +
+                                        "one\n", names.get(k), backEnd == 0 ? "loop" : "loop.pip");
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+            }, "stress-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        for (Throwable failure : failures)
+            failure.printStackTrace();
+        System.out.printf("%d kernels, %d concurrent runs on %d threads: %d differences, %d failures\n",
+                programs.size(), runs.get(), threads, differences.get(), failures.size());
+        return differences.get() == 0 && failures.isEmpty();
+    }
+
+    /**
+     * @return the dumped sequential and pipelined schedules of a program, parsed afresh
+     */
+    private static byte[][] dumps(String program, String source) throws IOException {
+        byte[][] dumps = new byte[2][];
+        for (int backEnd = 0; backEnd < 2; backEnd++) {
+            ArrayList<Instruction> instructions = IO.parseProgram(program, source);
+            dumps[backEnd] = IO.dump(Scheduler.schedule(instructions, backEnd == 1));
+        }
+        return dumps;
+    }
+}
@@ -0,0 +1,152 @@
+package Tracing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A trace of the scheduler's decisions, one JSON object per line: every attempt at placing an instruction into a
+ * bundle, every placement into and eviction from the modulo reservation table, every register remap, the edges of
+ * the dependency graph and the schedule after each step of register allocation and loop preparation.
+ *
+ * Tracing is off unless SCHEDULE_TRACE names the file to write to. ENABLED is a constant the JIT folds, so a call
+ * site guarded by it costs nothing when tracing is off:
+ * if (Trace.ENABLED)
+ *     Trace.attempt(address, index, placed);
+ *
+ * Events of concurrent schedules interleave; each carries the id of the thread that emitted it.
+ */
+public final class Trace {
+    public static final boolean ENABLED;
+    private static final BufferedWriter OUT;
+    private static final StringBuilder LINE = new StringBuilder(256);
+
+    static {
+        String path = System.getenv("SCHEDULE_TRACE");
+        BufferedWriter out = null;
+        if (path != null && !path.isEmpty()) {
+            try {
+                out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            BufferedWriter writer = out;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                synchronized (LINE) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }));
+        }
+        OUT = out;
+        ENABLED = out != null;
+    }
+
+    private Trace() {
+    }
+
+    /**
+     * An attempt at inserting the instruction at the address into a bundle of a list schedule.
+     */
+    public static void attempt(int address, int bundle, boolean placed) {
+        synchronized (LINE) {
+            start("attempt").append(",\"insn\":").append(address).append(",\"bundle\":").append(bundle)
+                    .append(",\"placed\":").append(placed);
+            end();
+        }
+    }
+
+    /**
+     * The modulo scheduler reserving a slot of a row of its reservation table for the instruction at the address,
+     * issued at the time relative to its iteration.
+     */
+    public static void reserve(int address, int ii, int time, int slot, boolean forced) {
+        synchronized (LINE) {
+            start("reserve").append(",\"insn\":").append(address).append(",\"ii\":").append(ii)
+                    .append(",\"time\":").append(time).append(",\"slot\":").append(slot)
+                    .append(",\"forced\":").append(forced);
+            end();
+        }
+    }
+
+    public static void evict(int address, int ii) {
+        synchronized (LINE) {
+            start("evict").append(",\"insn\":").append(address).append(",\"ii\":").append(ii);
+            end();
+        }
+    }
+
+    /**
+     * An operand of the instruction at the address, "dest", "a" or "b", mapped to another register.
+     */
+    public static void remap(int address, String operand, int from, int to) {
+        synchronized (LINE) {
+            start("remap").append(",\"insn\":").append(address).append(",\"operand\":\"").append(operand)
+                    .append("\",\"from\":").append(from).append(",\"to\":").append(to);
+            end();
+        }
+    }
+
+    public static void dependency(int consumer, int producer, String kind, int latency) {
+        synchronized (LINE) {
+            start("dependency").append(",\"insn\":").append(consumer).append(",\"producer\":").append(producer)
+                    .append(",\"kind\":\"").append(kind).append("\",\"latency\":").append(latency);
+            end();
+        }
+    }
+
+    /**
+     * The whole schedule as it prints after a step.
+     */
+    public static void snapshot(String step, Object schedule) {
+        String text = schedule.toString();
+        synchronized (LINE) {
+            start("snapshot").append(",\"step\":");
+            appendString(step);
+            LINE.append(",\"schedule\":");
+            appendString(text);
+            end();
+        }
+    }
+
+    private static StringBuilder start(String event) {
+        LINE.setLength(0);
+        return LINE.append("{\"event\":\"").append(event).append("\",\"thread\":")
+                .append(Thread.currentThread().getId());
+    }
+
+    private static void end() {
+        LINE.append("}\n");
+        try {
+            OUT.append(LINE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void appendString(String s) {
+        LINE.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> LINE.append("\\\"");
+                case '\\' -> LINE.append("\\\\");
+                case '\n' -> LINE.append("\\n");
+                case '\t' -> LINE.append("\\t");
+                case '\r' -> LINE.append("\\r");
+                default -> {
+                    if (c < 0x20)
+                        LINE.append(String.format("\\u%04x", (int) c));
+                    else
+                        LINE.append(c);
+                }
+            }
+        }
+        LINE.append('"');
+    }
+}
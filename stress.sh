@@ -0,0 +1,5 @@
+#!/bin/bash
+
+# shellcheck disable=SC2164
+cd src
+java -cp .:./gson-2.10.1.jar StressTest "$@"